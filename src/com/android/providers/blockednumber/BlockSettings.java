@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.content.SharedPreferences;
+import android.provider.BlockedNumberContract.SystemContract;
+
+/**
+ * Immutable snapshot of the enhanced block settings and the block suppression expiry time, so
+ * that block verdicts don't need any {@link SharedPreferences} lookups.
+ */
+final class BlockSettings {
+    static final String BLOCK_SUPPRESSION_EXPIRY_TIME_PREF = "block_suppression_expiry_time_pref";
+
+    final boolean blockUnregistered;
+    final boolean blockPrivate;
+    final boolean blockPayphone;
+    final boolean blockUnknown;
+    final boolean showEmergencyCallNotification;
+    final long blockSuppressionExpiryTimeMillis;
+
+    private BlockSettings(SharedPreferences pref) {
+        blockUnregistered = pref.getBoolean(
+                SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNREGISTERED, false);
+        blockPrivate = pref.getBoolean(SystemContract.ENHANCED_SETTING_KEY_BLOCK_PRIVATE, false);
+        blockPayphone = pref.getBoolean(
+                SystemContract.ENHANCED_SETTING_KEY_BLOCK_PAYPHONE, false);
+        blockUnknown = pref.getBoolean(SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNKNOWN, false);
+        showEmergencyCallNotification = pref.getBoolean(
+                SystemContract.ENHANCED_SETTING_KEY_SHOW_EMERGENCY_CALL_NOTIFICATION, false);
+        blockSuppressionExpiryTimeMillis = pref.getLong(BLOCK_SUPPRESSION_EXPIRY_TIME_PREF, 0);
+    }
+
+    static @NonNull BlockSettings load(@NonNull SharedPreferences pref) {
+        return new BlockSettings(pref);
+    }
+
+    /**
+     * @return whether {@code key} is one of the enhanced block settings held by the snapshot.
+     */
+    static boolean isKnownSetting(String key) {
+        if (key == null) {
+            return false;
+        }
+        switch (key) {
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNREGISTERED:
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_PRIVATE:
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_PAYPHONE:
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNKNOWN:
+            case SystemContract.ENHANCED_SETTING_KEY_SHOW_EMERGENCY_CALL_NOTIFICATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the value of the enhanced block setting {@code key}, which must be
+     * {@link #isKnownSetting known}.
+     */
+    boolean getEnhancedBlockSetting(String key) {
+        switch (key) {
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNREGISTERED:
+                return blockUnregistered;
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_PRIVATE:
+                return blockPrivate;
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_PAYPHONE:
+                return blockPayphone;
+            case SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNKNOWN:
+                return blockUnknown;
+            case SystemContract.ENHANCED_SETTING_KEY_SHOW_EMERGENCY_CALL_NOTIFICATION:
+                return showEmergencyCallNotification;
+            default:
+                throw new IllegalArgumentException("Unknown setting " + key);
+        }
+    }
+
+    boolean isAnyEnhancedBlockingSettingEnabled() {
+        return blockUnregistered || blockPrivate || blockPayphone || blockUnknown;
+    }
+}
@@ -23,10 +23,14 @@ import android.app.backup.BackupDataOutput;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.ParcelFileDescriptor;
 import android.provider.BlockedNumberContract;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import libcore.io.IoUtils;
 
 import java.io.ByteArrayInputStream;
@@ -36,13 +40,31 @@ import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * A backup agent to enable backup and restore of blocked numbers.
+ *
+ * <p>Blocked numbers are grouped into shards of {@link #SHARD_SIZE} consecutive IDs, each backed
+ * up as one entity keyed by {@link #SHARD_KEY_PREFIX} and the first ID of its range.  The state
+ * records the CRC32 of each shard's content, as per {@link #digestShard}, and only the shards
+ * whose content changed are encoded and written again.
+ *
+ * <p>Before version {@link #SHARD_VERSION}, each blocked number was an entity keyed by its ID;
+ * those entities are deleted on the first backup in the new format, and can still be restored.
  */
 public class BlockedNumberBackupAgent extends BackupAgent {
     private static final String[] BLOCKED_NUMBERS_PROJECTION = new String[] {
@@ -51,7 +73,30 @@ public class BlockedNumberBackupAgent extends BackupAgent {
             BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER,
     };
     private static final String TAG = "BlockedNumberBackup";
-    private static final int VERSION = 1;
+
+    /** Version of the state and payload formats with one entity per blocked number. */
+    private static final int LEGACY_VERSION = 1;
+    /** Version of the state and payload formats with one entity per shard. */
+    private static final int SHARD_VERSION = 2;
+
+    /** Tags of the numbers in {@link #SHARD_VERSION} payloads; see {@link #writeNumber}. */
+    private static final int NUMBER_NULL = 0;
+    private static final int NUMBER_DIGITS = 1;
+    private static final int NUMBER_PLUS_DIGITS = 2;
+    private static final int NUMBER_TEXT = 3;
+
+    /** How {@link #SHARD_VERSION} payloads store E164 numbers; see {@link #writeShard}. */
+    private static final int E164_NUMBER_WRITTEN = 0;
+    private static final int E164_NUMBER_ORIGINAL = 1;
+    private static final int E164_NUMBER_PREFIXED = 2;
+
+    /** Digest of shards missing from the previous backup; never matches a CRC32. */
+    private static final long UNKNOWN_DIGEST = -1;
+
+    private static final int SHARD_SIZE = 100;
+    /** Number of rows read from the database per query while backing up. */
+    private static final int READ_CHUNK_SIZE = 1000;
+    private static final String SHARD_KEY_PREFIX = "shard_";
     private static final boolean DEBUG = false; // DO NOT SUBMIT WITH TRUE.
 
     @Override
@@ -68,12 +113,13 @@ public class BlockedNumberBackupAgent extends BackupAgent {
             IoUtils.closeQuietly(dataInputStream);
         }
 
-        runBackup(state, backupDataOutput, getAllBlockedNumbers());
+        final BackupState backupState = runBackup(state, backupDataOutput,
+                getDatabaseHelper().getReadableDatabase());
 
         DataOutputStream dataOutputStream =
                 new DataOutputStream(new FileOutputStream(newState.getFileDescriptor()));
         try {
-            writeNewState(dataOutputStream, state);
+            writeNewState(dataOutputStream, backupState);
         } finally {
             dataOutputStream.close();
         }
@@ -84,74 +130,406 @@ public class BlockedNumberBackupAgent extends BackupAgent {
                           ParcelFileDescriptor newState) throws IOException {
         logV("Restoring blocked numbers.");
 
+        // Keyed by original number, the provider's unique key, so that duplicates are dropped.
+        final Map<String, BackedUpBlockedNumber> blockedNumbers = new LinkedHashMap<>();
         while (data.readNextHeader()) {
+            final String key = data.getKey();
+            if (key.startsWith(SHARD_KEY_PREFIX)) {
+                for (BackedUpBlockedNumber blockedNumber : readShardFromData(data)) {
+                    addRestoredNumber(blockedNumbers, blockedNumber);
+                }
+                continue;
+            }
             BackedUpBlockedNumber blockedNumber = readBlockedNumberFromData(data);
             if (blockedNumber != null) {
-                writeToProvider(blockedNumber);
+                addRestoredNumber(blockedNumbers, blockedNumber);
             }
         }
+        writeToProvider(blockedNumbers.values());
+    }
+
+    private static void addRestoredNumber(Map<String, BackedUpBlockedNumber> blockedNumbers,
+                                          BackedUpBlockedNumber blockedNumber) {
+        if (TextUtils.isEmpty(blockedNumber.originalNumber)) {
+            Log.e(TAG, "Missing original number in " + blockedNumber);
+            return;
+        }
+        blockedNumbers.put(blockedNumber.originalNumber, blockedNumber);
+    }
+
+    @VisibleForTesting
+    BlockedNumberDatabaseHelper getDatabaseHelper() {
+        return BlockedNumberDatabaseHelper.getInstance(this);
     }
 
     private BackupState readState(DataInputStream dataInputStream) throws IOException {
-        int version = VERSION;
-        if (dataInputStream.available() > 0) {
-            version = dataInputStream.readInt();
+        final BackupState state = new BackupState();
+        if (dataInputStream.available() == 0) {
+            // First backup.
+            return state;
         }
-        BackupState state = new BackupState(version, new TreeSet<Integer>());
-        while (dataInputStream.available() > 0) {
-            state.ids.add(dataInputStream.readInt());
+        final int version = dataInputStream.readInt();
+        switch (version) {
+            case LEGACY_VERSION:
+                while (dataInputStream.available() > 0) {
+                    state.addLegacyId(dataInputStream.readInt());
+                }
+                break;
+            case SHARD_VERSION:
+                final int shardCount = dataInputStream.readInt();
+                int shardIndex = 0;
+                for (int i = 0; i < shardCount; i++) {
+                    shardIndex += readVarint(dataInputStream);
+                    state.addShard(shardIndex * SHARD_SIZE,
+                            dataInputStream.readInt() & 0xffffffffL);
+                }
+                break;
+            default:
+                Log.w(TAG, "Unknown state version " + version);
+                break;
         }
         return state;
     }
 
-    private void runBackup(BackupState state, BackupDataOutput backupDataOutput,
-                           Iterable<BackedUpBlockedNumber> allBlockedNumbers) throws IOException {
-        SortedSet<Integer> deletedBlockedNumbers = new TreeSet<>(state.ids);
-
-        for (BackedUpBlockedNumber blockedNumber : allBlockedNumbers) {
-            if (state.ids.contains(blockedNumber.id)) {
-                // Existing blocked number: do not delete.
-                deletedBlockedNumbers.remove(blockedNumber.id);
-            } else {
-                logV("Adding blocked number to backup: " + blockedNumber);
-                // New blocked number
-                addToBackup(backupDataOutput, blockedNumber);
-                state.ids.add(blockedNumber.id);
+    /**
+     * Writes the shards whose content differs from {@code state}, and deletes the shards and
+     * legacy entities that no longer exist.  Shards are merged with the state in ID order, so
+     * this takes no lookups.
+     *
+     * <p>Rows are read straight from {@code db}, {@link #READ_CHUNK_SIZE} at a time with a
+     * {@link ChunkedRowReader}.  Only the shard being built is kept in memory, and no read
+     * transaction stays open for the whole backup.
+     *
+     * @return the new state.
+     */
+    private BackupState runBackup(BackupState state, BackupDataOutput backupDataOutput,
+                                  SQLiteDatabase db) throws IOException {
+        final BackupState newState = new BackupState();
+        final List<BackedUpBlockedNumber> shard = new ArrayList<>(SHARD_SIZE);
+        int stateIndex = 0;
+        final ChunkedRowReader rows = new ChunkedRowReader(db,
+                BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS, BLOCKED_NUMBERS_PROJECTION,
+                null, READ_CHUNK_SIZE);
+        try {
+            while (rows.moveToNext()) {
+                BackedUpBlockedNumber blockedNumber =
+                        createBlockedNumberFromCursor(rows.getCursor());
+                if (!shard.isEmpty() && getShardStart(shard.get(0).id)
+                        != getShardStart(blockedNumber.id)) {
+                    stateIndex = backUpShard(state, stateIndex, newState, backupDataOutput, shard);
+                    shard.clear();
+                }
+                shard.add(blockedNumber);
             }
+        } finally {
+            rows.close();
         }
+        if (!shard.isEmpty()) {
+            stateIndex = backUpShard(state, stateIndex, newState, backupDataOutput, shard);
+        }
+        removeShards(state, stateIndex, Integer.MAX_VALUE, backupDataOutput);
 
-        for (int id : deletedBlockedNumbers) {
-            logV("Removing blocked number from backup: " + id);
-            removeFromBackup(backupDataOutput, id);
-            state.ids.remove(id);
+        for (int i = 0; i < state.legacyIdCount; i++) {
+            logV("Removing legacy blocked number from backup: " + state.legacyIds[i]);
+            removeFromBackup(backupDataOutput, Integer.toString(state.legacyIds[i]));
         }
+        return newState;
     }
 
-    private void addToBackup(BackupDataOutput output, BackedUpBlockedNumber blockedNumber)
+    /**
+     * Backs up {@code shard} unless its digest matches the one in {@code state}.  Only then is it
+     * encoded and deflated.
+     *
+     * @param stateIndex index of the first shard of {@code state} not merged yet.
+     * @return the index of the first shard of {@code state} after {@code shard}.
+     */
+    private int backUpShard(BackupState state, int stateIndex, BackupState newState,
+                            BackupDataOutput output, List<BackedUpBlockedNumber> shard)
             throws IOException {
+        final int shardStart = getShardStart(shard.get(0).id);
+        stateIndex = removeShards(state, stateIndex, shardStart, output);
+        long oldDigest = UNKNOWN_DIGEST;
+        if (stateIndex < state.shardCount && state.shardStarts[stateIndex] == shardStart) {
+            oldDigest = state.shardDigests[stateIndex++];
+        }
+
+        final long digest = digestShard(shard);
+        newState.addShard(shardStart, digest);
+        if (digest == oldDigest) {
+            return stateIndex;
+        }
+
+        logV("Adding shard to backup: " + shardStart + ", " + shard.size() + " numbers");
+        final byte[] payload = writeShard(shard);
+        output.writeEntityHeader(getShardKey(shardStart), payload.length);
+        output.writeEntityData(payload, payload.length);
+        return stateIndex;
+    }
+
+    /**
+     * @return the CRC32 of the IDs and numbers of {@code shard}, uncompressed.  It doesn't depend
+     * on how the payload encodes them, e.g. on which E164 numbers it leaves out.
+     */
+    @VisibleForTesting
+    static long digestShard(List<BackedUpBlockedNumber> shard) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        for (BackedUpBlockedNumber blockedNumber : shard) {
+            writeVarint(dataOutputStream, blockedNumber.id);
+            writeNumber(dataOutputStream, blockedNumber.originalNumber);
+            writeNumber(dataOutputStream, blockedNumber.e164Number);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(outputStream.toByteArray(), 0, outputStream.size());
+        return crc.getValue();
+    }
+
+    /**
+     * Serializes {@code shard} in the {@link #SHARD_VERSION} format: the version, then deflated,
+     * the number count and for each number
+     * <ul>
+     *     <li>a varint of its ID minus the previous one, shifted left by two bits, the low bits
+     *     being one of the {@code E164_NUMBER_} values;
+     *     <li>the original number, as per {@link #writeNumber};
+     *     <li>for {@link #E164_NUMBER_WRITTEN}, the E164 number, and for
+     *     {@link #E164_NUMBER_PREFIXED}, the {@link #getE164Prefix prefix} which the E164 number
+     *     adds to the digits of the original number.  Nothing is written for
+     *     {@link #E164_NUMBER_ORIGINAL}, whose E164 number is the original number, e.g. an email.
+     * </ul>
+     * Numbers blocked in the current country mostly have an E164 number made of their own digits
+     * and the country code, so only the country code is stored.  This only compares strings: the
+     * E164 number is never formatted again, and is restored exactly as it was.
+     */
+    @VisibleForTesting
+    static byte[] writeShard(List<BackedUpBlockedNumber> shard) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-        dataOutputStream.writeInt(VERSION);
-        writeString(dataOutputStream, blockedNumber.originalNumber);
-        writeString(dataOutputStream, blockedNumber.e164Number);
-        dataOutputStream.flush();
+        new DataOutputStream(outputStream).writeInt(SHARD_VERSION);
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            DataOutputStream dataOutputStream = new DataOutputStream(
+                    new DeflaterOutputStream(outputStream, deflater));
+            writeVarint(dataOutputStream, shard.size());
+            int previousId = 0;
+            for (BackedUpBlockedNumber blockedNumber : shard) {
+                final String originalNumber = blockedNumber.originalNumber;
+                final String e164Number = blockedNumber.e164Number;
+                final String prefix;
+                final int e164Kind;
+                if (originalNumber != null && originalNumber.equals(e164Number)) {
+                    prefix = null;
+                    e164Kind = E164_NUMBER_ORIGINAL;
+                } else {
+                    prefix = getE164Prefix(originalNumber, e164Number);
+                    e164Kind = prefix != null ? E164_NUMBER_PREFIXED : E164_NUMBER_WRITTEN;
+                }
+                writeVarint(dataOutputStream, ((blockedNumber.id - previousId) << 2) | e164Kind);
+                writeNumber(dataOutputStream, originalNumber);
+                if (e164Kind == E164_NUMBER_WRITTEN) {
+                    writeNumber(dataOutputStream, e164Number);
+                } else if (e164Kind == E164_NUMBER_PREFIXED) {
+                    writeNumber(dataOutputStream, prefix);
+                }
+                previousId = blockedNumber.id;
+            }
+            dataOutputStream.close();
+        } finally {
+            deflater.end();
+        }
+        return outputStream.toByteArray();
+    }
 
-        output.writeEntityHeader(Integer.toString(blockedNumber.id), outputStream.size());
-        output.writeEntityData(outputStream.toByteArray(), outputStream.size());
+    /**
+     * Reads the deflated part of a {@link #SHARD_VERSION} payload.
+     */
+    private static List<BackedUpBlockedNumber> readShardContent(DataInputStream dataInputStream)
+            throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            DataInputStream dataInput = new DataInputStream(
+                    new InflaterInputStream(dataInputStream, inflater));
+            final int count = readVarint(dataInput);
+            final List<BackedUpBlockedNumber> blockedNumbers = new ArrayList<>(count);
+            int id = 0;
+            for (int i = 0; i < count; i++) {
+                final int header = readVarint(dataInput);
+                id += header >>> 2;
+                final String originalNumber = readNumber(dataInput);
+                final String e164Number;
+                switch (header & 3) {
+                    case E164_NUMBER_WRITTEN:
+                        e164Number = readNumber(dataInput);
+                        break;
+                    case E164_NUMBER_ORIGINAL:
+                        e164Number = originalNumber;
+                        break;
+                    case E164_NUMBER_PREFIXED:
+                        e164Number = "+" + readNumber(dataInput)
+                                + getSignificantDigits(originalNumber);
+                        break;
+                    default:
+                        throw new IOException("Unknown E164 number kind " + (header & 3));
+                }
+                blockedNumbers.add(new BackedUpBlockedNumber(id, originalNumber, e164Number));
+            }
+            return blockedNumbers;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the digits which {@code e164Number} has between its leading '+' and the
+     * {@link #getSignificantDigits significant digits} of {@code originalNumber}, e.g. "1" for
+     * "650-555-1234" and "+16505551234", or {@code null} if {@code e164Number} isn't of that form.
+     * This scans both strings once and doesn't allocate unless there's a match.
+     */
+    @Nullable
+    private static String getE164Prefix(@Nullable String originalNumber,
+                                        @Nullable String e164Number) {
+        if (originalNumber == null || e164Number == null || !e164Number.startsWith("+")) {
+            return null;
+        }
+        final int start = getFirstSignificantDigit(originalNumber);
+        if (start < 0) {
+            return null;
+        }
+        int e164Index = e164Number.length();
+        for (int i = originalNumber.length() - 1; i >= start; i--) {
+            final char c = originalNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                continue;
+            }
+            if (--e164Index < 1 || e164Number.charAt(e164Index) != c) {
+                return null;
+            }
+        }
+        for (int i = 1; i < e164Index; i++) {
+            final char c = e164Number.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+        }
+        return e164Number.substring(1, e164Index);
     }
 
-    private void writeString(DataOutputStream dataOutputStream, @Nullable String value)
+    /**
+     * @return the digits of {@code originalNumber} from its first non-zero one, dropping any
+     * trunk prefix and formatting characters.
+     */
+    private static String getSignificantDigits(@Nullable String originalNumber) {
+        final StringBuilder sb = new StringBuilder();
+        final int start = originalNumber == null ? -1 : getFirstSignificantDigit(originalNumber);
+        if (start < 0) {
+            return "";
+        }
+        for (int i = start; i < originalNumber.length(); i++) {
+            final char c = originalNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** @return the index of the first non-zero digit of {@code number}, or -1 if it has none. */
+    private static int getFirstSignificantDigit(String number) {
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '1' && c <= '9') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a varint whose low two bits are one of the {@code NUMBER_} tags and the rest the
+     * length of what follows: {@code value}'s digits packed two per byte, or its UTF-8 bytes if
+     * it isn't made of digits only, with an optional leading '+'.
+     */
+    private static void writeNumber(DataOutputStream dataOutputStream, @Nullable String value)
             throws IOException {
         if (value == null) {
-            dataOutputStream.writeBoolean(false);
-        } else {
-            dataOutputStream.writeBoolean(true);
-            dataOutputStream.writeUTF(value);
+            writeVarint(dataOutputStream, NUMBER_NULL);
+            return;
+        }
+        final boolean plus = value.startsWith("+");
+        final int start = plus ? 1 : 0;
+        boolean digitsOnly = value.length() > start;
+        for (int i = start; i < value.length() && digitsOnly; i++) {
+            final char c = value.charAt(i);
+            digitsOnly = c >= '0' && c <= '9';
+        }
+        if (!digitsOnly) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(dataOutputStream, (bytes.length << 2) | NUMBER_TEXT);
+            dataOutputStream.write(bytes);
+            return;
+        }
+        final int numDigits = value.length() - start;
+        writeVarint(dataOutputStream,
+                (numDigits << 2) | (plus ? NUMBER_PLUS_DIGITS : NUMBER_DIGITS));
+        for (int i = 0; i < numDigits; i += 2) {
+            final int low = value.charAt(start + i) - '0';
+            final int high = i + 1 < numDigits ? value.charAt(start + i + 1) - '0' : 0xf;
+            dataOutputStream.writeByte((high << 4) | low);
         }
     }
 
     @Nullable
-    private String readString(DataInputStream dataInputStream)
+    private static String readNumber(DataInputStream dataInputStream) throws IOException {
+        final int header = readVarint(dataInputStream);
+        final int length = header >>> 2;
+        switch (header & 3) {
+            case NUMBER_NULL:
+                return null;
+            case NUMBER_TEXT:
+                final byte[] bytes = new byte[length];
+                dataInputStream.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            default:
+                final boolean plus = (header & 3) == NUMBER_PLUS_DIGITS;
+                final StringBuilder sb = new StringBuilder(length + 1);
+                if (plus) {
+                    sb.append('+');
+                }
+                for (int i = 0; i < length; i += 2) {
+                    final int b = dataInputStream.readUnsignedByte();
+                    sb.append((char) ('0' + (b & 0xf)));
+                    if (i + 1 < length) {
+                        sb.append((char) ('0' + (b >>> 4)));
+                    }
+                }
+                return sb.toString();
+        }
+    }
+
+    /**
+     * Deletes the shards of {@code state} from {@code stateIndex} up to, excluding, the one
+     * starting at {@code shardStart}.
+     *
+     * @return the index of the first shard of {@code state} not deleted.
+     */
+    private int removeShards(BackupState state, int stateIndex, int shardStart,
+                             BackupDataOutput output) throws IOException {
+        while (stateIndex < state.shardCount && state.shardStarts[stateIndex] < shardStart) {
+            logV("Removing shard from backup: " + state.shardStarts[stateIndex]);
+            removeFromBackup(output, getShardKey(state.shardStarts[stateIndex]));
+            stateIndex++;
+        }
+        return stateIndex;
+    }
+
+    private static int getShardStart(int id) {
+        return id - id % SHARD_SIZE;
+    }
+
+    private static String getShardKey(int shardStart) {
+        return SHARD_KEY_PREFIX + shardStart;
+    }
+
+    @Nullable
+    private static String readString(DataInputStream dataInputStream)
             throws IOException {
         if (dataInputStream.readBoolean()) {
             return dataInputStream.readUTF();
@@ -160,26 +538,8 @@ public class BlockedNumberBackupAgent extends BackupAgent {
         }
     }
 
-    private void removeFromBackup(BackupDataOutput output, int id) throws IOException {
-        output.writeEntityHeader(Integer.toString(id), -1);
-    }
-
-    private Iterable<BackedUpBlockedNumber> getAllBlockedNumbers() {
-        List<BackedUpBlockedNumber> blockedNumbers = new ArrayList<>();
-        ContentResolver resolver = getContentResolver();
-        Cursor cursor = resolver.query(
-                BlockedNumberContract.BlockedNumbers.CONTENT_URI, BLOCKED_NUMBERS_PROJECTION, null,
-                null, null);
-        if (cursor != null) {
-            try {
-                while (cursor.moveToNext()) {
-                    blockedNumbers.add(createBlockedNumberFromCursor(cursor));
-                }
-            } finally {
-                cursor.close();
-            }
-        }
-        return blockedNumbers;
+    private void removeFromBackup(BackupDataOutput output, String key) throws IOException {
+        output.writeEntityHeader(key, -1);
     }
 
     private BackedUpBlockedNumber createBlockedNumberFromCursor(Cursor cursor) {
@@ -187,14 +547,80 @@ public class BlockedNumberBackupAgent extends BackupAgent {
                 cursor.getInt(0), cursor.getString(1), cursor.getString(2));
     }
 
+    /**
+     * Writes {@code state} in the {@link #SHARD_VERSION} format: the version, the shard count and
+     * for each shard, a varint of its index minus the previous one and its digest.
+     */
     private void writeNewState(DataOutputStream dataOutputStream, BackupState state)
             throws IOException {
-        dataOutputStream.writeInt(VERSION);
-        for (int i : state.ids) {
-            dataOutputStream.writeInt(i);
+        dataOutputStream.writeInt(SHARD_VERSION);
+        dataOutputStream.writeInt(state.shardCount);
+        int previousShardIndex = 0;
+        for (int i = 0; i < state.shardCount; i++) {
+            final int shardIndex = state.shardStarts[i] / SHARD_SIZE;
+            writeVarint(dataOutputStream, shardIndex - previousShardIndex);
+            dataOutputStream.writeInt((int) state.shardDigests[i]);
+            previousShardIndex = shardIndex;
         }
     }
 
+    /** Writes a non-negative int in 1 to 5 bytes, 7 bits at a time. */
+    private static void writeVarint(DataOutputStream dataOutputStream, int value)
+            throws IOException {
+        while ((value & ~0x7f) != 0) {
+            dataOutputStream.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dataOutputStream.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream dataInputStream) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = dataInputStream.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private List<BackedUpBlockedNumber> readShardFromData(BackupDataInput data) {
+        try {
+            byte[] byteArray = new byte[data.getDataSize()];
+            data.readEntityData(byteArray, 0, byteArray.length);
+            final List<BackedUpBlockedNumber> blockedNumbers = readShard(byteArray);
+            if (blockedNumbers == null) {
+                Log.e(TAG, "Unsupported version for " + data.getKey());
+                return new ArrayList<>();
+            }
+            for (BackedUpBlockedNumber blockedNumber : blockedNumbers) {
+                logV("Restoring blocked number: " + blockedNumber);
+            }
+            return blockedNumbers;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading blocked numbers for: " + data.getKey() + ": "
+                    + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Reads a shard payload written by {@link #writeShard}.
+     *
+     * @return the numbers, or {@code null} if the version is not supported.
+     */
+    @VisibleForTesting
+    @Nullable
+    static List<BackedUpBlockedNumber> readShard(byte[] payload) throws IOException {
+        DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(payload));
+        if (dataInput.readInt() != SHARD_VERSION) {
+            return null;
+        }
+        return readShardContent(dataInput);
+    }
+
     @Nullable
     private BackedUpBlockedNumber readBlockedNumberFromData(BackupDataInput data) {
         int id;
@@ -208,10 +634,7 @@ public class BlockedNumberBackupAgent extends BackupAgent {
         try {
             byte[] byteArray = new byte[data.getDataSize()];
             data.readEntityData(byteArray, 0, byteArray.length);
-            DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(byteArray));
-            dataInput.readInt(); // Ignore version.
-            BackedUpBlockedNumber blockedNumber =
-                    new BackedUpBlockedNumber(id, readString(dataInput), readString(dataInput));
+            BackedUpBlockedNumber blockedNumber = readLegacyBlockedNumber(id, byteArray);
             logV("Restoring blocked number: " + blockedNumber);
             return blockedNumber;
         } catch (IOException e) {
@@ -220,18 +643,79 @@ public class BlockedNumberBackupAgent extends BackupAgent {
         }
     }
 
-    private void writeToProvider(BackedUpBlockedNumber blockedNumber) {
-        ContentValues contentValues = new ContentValues();
+    /** Reads the {@link #LEGACY_VERSION} payload of the blocked number {@code id}. */
+    @VisibleForTesting
+    static BackedUpBlockedNumber readLegacyBlockedNumber(int id, byte[] payload)
+            throws IOException {
+        DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(payload));
+        dataInput.readInt(); // Ignore version.
+        return new BackedUpBlockedNumber(id, readString(dataInput), readString(dataInput));
+    }
+
+    /**
+     * Inserts the restored numbers that aren't blocked yet with a single bulk insert, which the
+     * provider commits in one transaction and follows with one change notification.  If it
+     * fails, the numbers are inserted one by one so that a bad row doesn't lose the others.
+     */
+    private void writeToProvider(Collection<BackedUpBlockedNumber> blockedNumbers) {
+        final Set<String> existingNumbers = getExistingOriginalNumbers();
+        final List<ContentValues> values = new ArrayList<>(blockedNumbers.size());
+        for (BackedUpBlockedNumber blockedNumber : blockedNumbers) {
+            if (existingNumbers.contains(blockedNumber.originalNumber)) {
+                logV("Skipping blocked number already present: " + blockedNumber);
+                continue;
+            }
+            values.add(createContentValues(blockedNumber));
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+
+        final ContentResolver resolver = getContentResolver();
+        try {
+            final int numRows = resolver.bulkInsert(
+                    BlockedNumberContract.BlockedNumbers.CONTENT_URI,
+                    values.toArray(new ContentValues[values.size()]));
+            logV("Restored " + numRows + " blocked numbers.");
+            return;
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to insert " + values.size() + " blocked numbers :"
+                    + e.getMessage());
+        }
+        for (ContentValues contentValues : values) {
+            try {
+                resolver.insert(BlockedNumberContract.BlockedNumbers.CONTENT_URI, contentValues);
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to insert blocked number :" + e.getMessage());
+            }
+        }
+    }
+
+    private Set<String> getExistingOriginalNumbers() {
+        final Set<String> originalNumbers = new HashSet<>();
+        Cursor cursor = getContentResolver().query(
+                BlockedNumberContract.BlockedNumbers.CONTENT_URI,
+                new String[] {BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER},
+                null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    originalNumbers.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return originalNumbers;
+    }
+
+    private static ContentValues createContentValues(BackedUpBlockedNumber blockedNumber) {
+        ContentValues contentValues = new ContentValues(2);
         contentValues.put(BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER,
                 blockedNumber.originalNumber);
         contentValues.put(BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER,
                 blockedNumber.e164Number);
-        try {
-            getContentResolver().insert(
-                    BlockedNumberContract.BlockedNumbers.CONTENT_URI, contentValues);
-        } catch (Exception e) {
-            Log.e(TAG, "Unable to insert blocked number " + blockedNumber + " :" + e.getMessage());
-        }
+        return contentValues;
     }
 
     private static boolean isDebug() {
@@ -245,16 +729,35 @@ public class BlockedNumberBackupAgent extends BackupAgent {
     }
 
     private static class BackupState {
-        final int version;
-        final SortedSet<Integer> ids;
+        /** First ID of each backed up shard, in ascending order. */
+        int[] shardStarts = new int[16];
+        /** CRC32 of each shard's content. */
+        long[] shardDigests = new long[16];
+        int shardCount;
+        /** IDs of the entities left by a {@link #LEGACY_VERSION} backup. */
+        int[] legacyIds = new int[0];
+        int legacyIdCount;
+
+        void addShard(int shardStart, long digest) {
+            if (shardCount == shardStarts.length) {
+                shardStarts = Arrays.copyOf(shardStarts, shardCount * 2);
+                shardDigests = Arrays.copyOf(shardDigests, shardCount * 2);
+            }
+            shardStarts[shardCount] = shardStart;
+            shardDigests[shardCount] = digest;
+            shardCount++;
+        }
 
-        BackupState(int version, SortedSet<Integer> ids) {
-            this.version = version;
-            this.ids = ids;
+        void addLegacyId(int id) {
+            if (legacyIdCount == legacyIds.length) {
+                legacyIds = Arrays.copyOf(legacyIds, Math.max(16, legacyIdCount * 2));
+            }
+            legacyIds[legacyIdCount++] = id;
         }
     }
 
-    private static class BackedUpBlockedNumber {
+    @VisibleForTesting
+    static class BackedUpBlockedNumber {
         final int id;
         final String originalNumber;
         final String e164Number;
@@ -16,20 +16,43 @@
 package com.android.providers.blockednumber;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.text.TextUtils;
+import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.Preconditions;
+import com.android.providers.blockednumber.BlockedNumberProvider.BlockingRules;
 
 public class BlockedNumberDatabaseHelper {
-    private static final int DATABASE_VERSION = 2;
+    private static final String TAG = "BlockedNumberDatabaseHelper";
+
+    private static final int DATABASE_VERSION = 4;
 
     private static final String DATABASE_NAME = "blockednumbers.db";
 
     private static final int IDLE_CONNECTION_TIMEOUT_MS = 30000;
 
+    /** Page cache of each connection, in KiB.  Verdicts are mostly served from memory. */
+    private static final int CACHE_SIZE_KIB = 1024;
+
+    /** Size of the memory mapped part of the database file, where supported. */
+    private static final long MMAP_SIZE_BYTES = 4 * 1024 * 1024;
+
+    /** Number of rows read at once when backfilling {@link #COLUMN_LOOKUP_KEY}. */
+    private static final int MIGRATION_CHUNK_SIZE = 500;
+
+    /**
+     * Internal column of {@link Tables#BLOCKED_NUMBERS} holding {@link NumberKeySet#encode} of
+     * the E164 number, or {@code NULL} if the row has no E164 number.  Verdict queries probe this
+     * integer column rather than the E164 string; see {@link #getLookupKey}.
+     */
+    public static final String COLUMN_LOOKUP_KEY = "lookup_key";
+
     private static BlockedNumberDatabaseHelper sInstance;
 
     private final Context mContext;
@@ -38,6 +61,7 @@ public class BlockedNumberDatabaseHelper {
 
     public interface Tables {
         String BLOCKED_NUMBERS = "blocked";
+        String RULES = "rules";
     }
 
     private static final class OpenHelper extends SQLiteOpenHelper {
@@ -46,6 +70,21 @@ public class BlockedNumberDatabaseHelper {
             super(context, name, factory, version);
             // Memory optimization - close idle connections after 30s of inactivity
             setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
+            // Lets reads use the pool of secondary connections while a write transaction holds
+            // the primary one, instead of waiting for it to commit.  No-op for in-memory
+            // databases.
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.execSQL("PRAGMA cache_size=-" + CACHE_SIZE_KIB);
+            // Returns the resulting size, so it can't go through execSQL(), and returns no row
+            // for in-memory databases, so it can't go through longForQuery() either.  The
+            // pragma runs when the cursor is filled.
+            try (Cursor c = db.rawQuery("PRAGMA mmap_size=" + MMAP_SIZE_BYTES, null)) {
+                c.moveToFirst();
+            }
         }
 
         @Override
@@ -58,6 +97,13 @@ public class BlockedNumberDatabaseHelper {
             if (oldVersion < 2) {
                 db.execSQL("DROP TABLE IF EXISTS blocked");
                 createTables(db);
+                return;
+            }
+            if (oldVersion < 3) {
+                createRulesTable(db);
+            }
+            if (oldVersion < 4) {
+                upgradeToVersion4(db);
             }
         }
 
@@ -65,34 +111,117 @@ public class BlockedNumberDatabaseHelper {
             db.execSQL("CREATE TABLE " + Tables.BLOCKED_NUMBERS + " (" +
                     BlockedNumbers.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                     BlockedNumbers.COLUMN_ORIGINAL_NUMBER + " TEXT NOT NULL UNIQUE," +
-                    BlockedNumbers.COLUMN_E164_NUMBER + " TEXT" +
+                    BlockedNumbers.COLUMN_E164_NUMBER + " TEXT," +
+                    COLUMN_LOOKUP_KEY + " INTEGER" +
                     ")");
 
-            db.execSQL("CREATE INDEX blocked_number_idx_original ON " + Tables.BLOCKED_NUMBERS +
-                    " (" + BlockedNumbers.COLUMN_ORIGINAL_NUMBER + ");");
-            db.execSQL("CREATE INDEX blocked_number_idx_e164 ON " + Tables.BLOCKED_NUMBERS + " (" +
-                    BlockedNumbers.COLUMN_E164_NUMBER +
-                    ");");
+            // The UNIQUE constraint already indexes the original number.
+            createLookupKeyIndexes(db);
+
+            createRulesTable(db);
         }
+
+        /**
+         * Only indexes rows which have a lookup key, which is how verdict queries use it.  E164
+         * numbers which have no lookup key, such as email addresses, are indexed separately.
+         */
+        private void createLookupKeyIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX blocked_number_idx_lookup_key ON " + Tables.BLOCKED_NUMBERS +
+                    " (" + COLUMN_LOOKUP_KEY + ") WHERE " + COLUMN_LOOKUP_KEY + " IS NOT NULL;");
+            db.execSQL("CREATE INDEX blocked_number_idx_unkeyed_e164 ON " +
+                    Tables.BLOCKED_NUMBERS + " (" + BlockedNumbers.COLUMN_E164_NUMBER + ") WHERE " +
+                    COLUMN_LOOKUP_KEY + " IS NULL;");
+        }
+
+        /**
+         * Adds {@link #COLUMN_LOOKUP_KEY} and backfills it in place, reading
+         * {@link #MIGRATION_CHUNK_SIZE} rows at a time with a {@link ChunkedRowReader} so that
+         * the cursor window stays small however many numbers are blocked.  The E164 index, which
+         * included empty values, and the original number index, which duplicated the UNIQUE one,
+         * are dropped.
+         */
+        private void upgradeToVersion4(SQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS blocked_number_idx_original");
+            db.execSQL("DROP INDEX IF EXISTS blocked_number_idx_e164");
+            db.execSQL("ALTER TABLE " + Tables.BLOCKED_NUMBERS + " ADD COLUMN " +
+                    COLUMN_LOOKUP_KEY + " INTEGER");
+
+            final SQLiteStatement update = db.compileStatement("UPDATE " +
+                    Tables.BLOCKED_NUMBERS + " SET " + COLUMN_LOOKUP_KEY + "=? WHERE " +
+                    BlockedNumbers.COLUMN_ID + "=?");
+            final String[] projection = new String[] {
+                    BlockedNumbers.COLUMN_ID, BlockedNumbers.COLUMN_E164_NUMBER};
+            final ChunkedRowReader rows = new ChunkedRowReader(db, Tables.BLOCKED_NUMBERS,
+                    projection, BlockedNumbers.COLUMN_E164_NUMBER + "!=''", MIGRATION_CHUNK_SIZE);
+            try {
+                while (rows.moveToNext()) {
+                    final Cursor c = rows.getCursor();
+                    final Long key = getLookupKey(c.getString(1));
+                    if (key == null) {
+                        continue;
+                    }
+                    update.bindLong(1, key);
+                    update.bindLong(2, c.getLong(0));
+                    update.executeUpdateDelete();
+                }
+            } finally {
+                rows.close();
+                update.close();
+            }
+            createLookupKeyIndexes(db);
+            Log.i(TAG, "Backfilled lookup keys of " + rows.getRowCount() + " rows");
+        }
+    }
+
+    /**
+     * Creates {@link Tables#RULES}, which appeared in version 3 and hasn't changed since.
+     */
+    @VisibleForTesting
+    static void createRulesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.RULES + " (" +
+                BlockingRules.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                BlockingRules.COLUMN_TYPE + " INTEGER NOT NULL," +
+                BlockingRules.COLUMN_RULE + " TEXT NOT NULL," +
+                "UNIQUE (" + BlockingRules.COLUMN_TYPE + "," + BlockingRules.COLUMN_RULE + ")" +
+                ")");
+    }
+
+    /**
+     * @return the value of {@link #COLUMN_LOOKUP_KEY} for a row whose E164 number is
+     * {@code e164Number}, or {@code null} if it has none.
+     */
+    public static Long getLookupKey(String e164Number) {
+        if (TextUtils.isEmpty(e164Number)) {
+            return null;
+        }
+        final long key = NumberKeySet.encode(e164Number);
+        return key == NumberKeySet.NO_KEY ? null : key;
     }
 
     @VisibleForTesting
     public static BlockedNumberDatabaseHelper newInstanceForTest(Context context) {
-        return new BlockedNumberDatabaseHelper(context, /* instanceIsForTesting =*/ true);
+        return new BlockedNumberDatabaseHelper(context, /* databaseName =*/ null);
+    }
+
+    /**
+     * Creates a helper for the database file {@code databaseName}, for tests which need a real
+     * file, e.g. to upgrade an existing database or to use write-ahead logging.
+     */
+    @VisibleForTesting
+    public static BlockedNumberDatabaseHelper newInstanceForTest(Context context,
+            String databaseName) {
+        return new BlockedNumberDatabaseHelper(context, databaseName);
     }
 
-    private BlockedNumberDatabaseHelper(Context context, boolean instanceIsForTesting) {
+    private BlockedNumberDatabaseHelper(Context context, String databaseName) {
         Preconditions.checkNotNull(context);
         mContext = context;
-        mOpenHelper = new OpenHelper(mContext,
-                instanceIsForTesting ? null : DATABASE_NAME, null, DATABASE_VERSION);
+        mOpenHelper = new OpenHelper(mContext, databaseName, null, DATABASE_VERSION);
     }
 
     public static synchronized BlockedNumberDatabaseHelper getInstance(Context context) {
         if (sInstance == null) {
-            sInstance = new BlockedNumberDatabaseHelper(
-                    context,
-                    /* instanceIsForTesting = */ false);
+            sInstance = new BlockedNumberDatabaseHelper(context, DATABASE_NAME);
         }
         return sInstance;
     }
@@ -107,5 +236,11 @@ public class BlockedNumberDatabaseHelper {
 
     public void wipeForTest() {
         getWritableDatabase().execSQL("DELETE FROM " + Tables.BLOCKED_NUMBERS);
+        getWritableDatabase().execSQL("DELETE FROM " + Tables.RULES);
+    }
+
+    @VisibleForTesting
+    public void closeForTest() {
+        mOpenHelper.close();
     }
 }
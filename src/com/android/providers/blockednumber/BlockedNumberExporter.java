@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.content.ContentProvider.PipeDataWriter;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.providers.blockednumber.BlockedNumberDatabaseHelper.Tables;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the blocked list as CSV into the pipe opened by
+ * {@link BlockedNumberProvider#openTypedAssetFile}.
+ *
+ * <p>Rows are read {@link #CHUNK_SIZE} at a time with a {@link ChunkedRowReader}, so memory use
+ * doesn't depend on the size of the list and no read transaction stays open for the whole
+ * export.
+ */
+class BlockedNumberExporter implements PipeDataWriter<Void> {
+    private static final String TAG = BlockedNumberProvider.TAG;
+
+    public static final String MIME_TYPE = "text/csv";
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final String[] PROJECTION = new String[] {
+            BlockedNumbers.COLUMN_ID,
+            BlockedNumbers.COLUMN_ORIGINAL_NUMBER,
+            BlockedNumbers.COLUMN_E164_NUMBER,
+    };
+
+    /** The first line of the export, naming the columns. */
+    public static final String HEADER = TextUtils.join(",", PROJECTION);
+
+    private final BlockedNumberDatabaseHelper mDbHelper;
+
+    public BlockedNumberExporter(@NonNull BlockedNumberDatabaseHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    @Override
+    public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri,
+            @NonNull String mimeType, Bundle opts, Void args) {
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        try (ChunkedRowReader rows = new ChunkedRowReader(
+                db, Tables.BLOCKED_NUMBERS, PROJECTION, null, CHUNK_SIZE)) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output.getFileDescriptor()), StandardCharsets.UTF_8))) {
+                writer.write(HEADER);
+                writer.write("\r\n");
+                while (rows.moveToNext()) {
+                    final Cursor c = rows.getCursor();
+                    writeRow(writer, Long.toString(c.getLong(0)), c.getString(1),
+                            c.getString(2));
+                }
+            } catch (IOException e) {
+                // Most likely the reader went away.
+                Log.w(TAG, "Export interrupted after " + rows.getRowCount() + " rows", e);
+            }
+        }
+    }
+
+    /**
+     * Reads back a row written by the export, other than the {@link #HEADER}.
+     *
+     * @return the original number, or {@code null} if {@code line} is not a row of
+     * {@link #PROJECTION} fields with a non empty original number.
+     */
+    public static String parseOriginalNumber(@NonNull String line) {
+        final String[] fields = new String[PROJECTION.length];
+        final StringBuilder field = new StringBuilder();
+        int numFields = 0;
+        int i = 0;
+        while (true) {
+            field.setLength(0);
+            if (i < line.length() && line.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i >= line.length()) {
+                        // Unterminated quotes.
+                        return null;
+                    }
+                    final char c = line.charAt(i++);
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i < line.length() && line.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+            } else {
+                while (i < line.length() && line.charAt(i) != ',') {
+                    field.append(line.charAt(i++));
+                }
+            }
+            if (numFields == fields.length) {
+                return null;
+            }
+            fields[numFields++] = field.toString();
+            if (i == line.length()) {
+                break;
+            }
+            if (line.charAt(i++) != ',') {
+                // Characters after closing quotes.
+                return null;
+            }
+        }
+        if (numFields != fields.length || fields[1].isEmpty()) {
+            return null;
+        }
+        return fields[1];
+    }
+
+    private static void writeRow(Writer writer, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeField(writer, fields[i]);
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Writes {@code field} as per RFC 4180, quoting it if needed.  {@code null} is written as an
+     * empty field.
+     */
+    private static void writeField(Writer writer, String field) throws IOException {
+        if (field == null) {
+            return;
+        }
+        boolean needsQuotes = false;
+        for (int i = 0; i < field.length() && !needsQuotes; i++) {
+            final char c = field.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!needsQuotes) {
+            writer.write(field);
+            return;
+        }
+        writer.write('"');
+        writer.write(field.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.blockednumber.BlockedNumberDatabaseHelper.Tables;
+
+import java.io.PrintWriter;
+
+/**
+ * In-memory index over the original and E164 numbers of the blocked table, so that block
+ * verdicts do not need a database round trip.
+ *
+ * <p>The index is loaded from the database on first use and then kept up to date by the
+ * provider.  All mutations must happen inside the database transaction that performs the
+ * corresponding write, so that a concurrent {@link #ensureLoaded} cannot observe the same row
+ * twice.  If a transaction fails after the index has been mutated, the caller must call
+ * {@link #invalidate} so that the index is reloaded on next use.
+ *
+ * <p>Numbers are kept in {@link NumberKeySet}s, which store E164 numbers and unformatted
+ * original numbers as 64-bit keys, so probes hash a {@code long} and don't allocate.
+ *
+ * <p>Both kinds of numbers are also kept in a {@link BloomFilter}, which answers most probes for
+ * numbers that are not blocked without touching the hash tables.  Entries can't be removed from
+ * the filter, so deletions mark it as stale, which makes probes bypass it, and
+ * {@link #rebuildFilterIfNeeded} recreates it in the background once the write is complete.
+ * The new filter is built from a copy of the hash tables, outside of the index lock, so that
+ * probes don't wait for it.
+ */
+class BlockedNumberIndex {
+    /** Target false positive rate of the Bloom filter. */
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    /** The filter is sized for at least this many entries so that small lists don't churn. */
+    private static final int MIN_FILTER_CAPACITY = 256;
+
+    private static final String[] LOAD_PROJECTION = new String[] {
+            BlockedNumbers.COLUMN_ORIGINAL_NUMBER,
+            BlockedNumbers.COLUMN_E164_NUMBER,
+    };
+
+    private final NumberKeySet mOriginalNumbers = new NumberKeySet();
+
+    /** Several rows may map to the same E164 number, hence the reference counts of the set. */
+    private final NumberKeySet mE164Numbers = new NumberKeySet();
+
+    private boolean mLoaded;
+
+    private final double mFilterFalsePositiveRate;
+    private BloomFilter mFilter;
+    private boolean mFilterStale;
+
+    /** Incremented on each change of the numbers, so that rebuilds can tell they raced one. */
+    private int mModCount;
+
+    private long mProbeCount;
+    private long mFilterNegativeCount;
+    private long mFilterFalsePositiveCount;
+    private int mFilterRebuildCount;
+
+    public BlockedNumberIndex() {
+        this(FILTER_FALSE_POSITIVE_RATE);
+    }
+
+    @VisibleForTesting
+    public BlockedNumberIndex(double filterFalsePositiveRate) {
+        mFilterFalsePositiveRate = filterFalsePositiveRate;
+    }
+
+    /**
+     * Loads the index from {@code db} unless it's already loaded.
+     */
+    public void ensureLoaded(@NonNull SQLiteDatabase db) {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+        // Load within a transaction so that no writer can modify the table concurrently.
+        db.beginTransaction();
+        try {
+            synchronized (this) {
+                if (mLoaded) {
+                    return;
+                }
+                mOriginalNumbers.clear();
+                mE164Numbers.clear();
+                mModCount++;
+                try (Cursor c = db.query(Tables.BLOCKED_NUMBERS, LOAD_PROJECTION,
+                        null, null, null, null, null)) {
+                    while (c.moveToNext()) {
+                        addLocked(c.getString(0), c.getString(1));
+                    }
+                }
+                mLoaded = true;
+                rebuildFilterLocked();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops the index content; it'll be reloaded on next {@link #ensureLoaded}.
+     */
+    public synchronized void invalidate() {
+        mLoaded = false;
+        mOriginalNumbers.clear();
+        mE164Numbers.clear();
+        mModCount++;
+        mFilter = null;
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Checks whether the index is loaded and probes it under the same lock, so that a concurrent
+     * {@link #invalidate} can't make a blocked number look unblocked.
+     *
+     * @return whether a row exists whose original number is {@code originalNumber}, or whose E164
+     * number is {@code e164Number} if it's not empty; {@code null} if the index is not loaded.
+     */
+    public synchronized @Nullable Boolean contains(@NonNull String originalNumber,
+            @Nullable String e164Number) {
+        if (!mLoaded) {
+            return null;
+        }
+        return containsLocked(originalNumber, e164Number);
+    }
+
+    /**
+     * Batch version of {@link #contains}, which probes all the numbers under a single lock.
+     * {@code null} original numbers are never blocked.
+     *
+     * @return whether each of {@code originalNumbers} is blocked, or {@code null} if the index is
+     * not loaded.
+     */
+    public synchronized @Nullable boolean[] contains(@NonNull String[] originalNumbers,
+            @NonNull String[] e164Numbers) {
+        if (!mLoaded) {
+            return null;
+        }
+        final boolean[] blocked = new boolean[originalNumbers.length];
+        for (int i = 0; i < originalNumbers.length; i++) {
+            blocked[i] = originalNumbers[i] != null
+                    && containsLocked(originalNumbers[i], e164Numbers[i]);
+        }
+        return blocked;
+    }
+
+    private boolean containsLocked(String originalNumber, String e164Number) {
+        mProbeCount++;
+        final boolean hasE164Number = !TextUtils.isEmpty(e164Number);
+        final long originalKey = NumberKeySet.encode(originalNumber);
+        final long e164Key = hasE164Number
+                ? NumberKeySet.encode(e164Number) : NumberKeySet.NO_KEY;
+        if (mFilter != null && !mFilterStale
+                && !filterMightContainLocked(originalNumber, originalKey)
+                && !(hasE164Number && filterMightContainLocked(e164Number, e164Key))) {
+            mFilterNegativeCount++;
+            return false;
+        }
+        final boolean found = mOriginalNumbers.contains(originalNumber, originalKey)
+                || (hasE164Number && mE164Numbers.contains(e164Number, e164Key));
+        if (!found && mFilter != null && !mFilterStale) {
+            mFilterFalsePositiveCount++;
+        }
+        return found;
+    }
+
+    /**
+     * Records an inserted row.  No-op if the index is not loaded yet.
+     */
+    public synchronized void add(@NonNull String originalNumber, @Nullable String e164Number) {
+        if (mLoaded) {
+            addLocked(originalNumber, e164Number);
+        }
+    }
+
+    /**
+     * Records a deleted row.  No-op if the index is not loaded yet.
+     */
+    public synchronized void remove(@NonNull String originalNumber, @Nullable String e164Number) {
+        if (!mLoaded) {
+            return;
+        }
+        mModCount++;
+        if (mOriginalNumbers.remove(originalNumber)) {
+            mFilterStale = true;
+        }
+        if (!TextUtils.isEmpty(e164Number) && mE164Numbers.remove(e164Number)) {
+            mFilterStale = true;
+        }
+    }
+
+    public synchronized int size() {
+        return mOriginalNumbers.size();
+    }
+
+    /**
+     * @return whether the Bloom filter is stale, or outgrew its capacity, and should be rebuilt
+     * with {@link #rebuildFilterIfNeeded}.
+     */
+    public synchronized boolean isFilterRebuildNeeded() {
+        return isFilterRebuildNeededLocked();
+    }
+
+    /**
+     * Recreates the Bloom filter if {@link #isFilterRebuildNeeded}.  Meant to run on a
+     * background thread after a write: the hash tables are copied under the lock, and the filter
+     * built from the copies without it.  The new filter is dropped if the numbers changed in the
+     * meantime; the write that changed them has to request another rebuild.
+     */
+    public void rebuildFilterIfNeeded() {
+        final NumberKeySet originalNumbers;
+        final NumberKeySet e164Numbers;
+        final int modCount;
+        synchronized (this) {
+            if (!isFilterRebuildNeededLocked()) {
+                return;
+            }
+            originalNumbers = mOriginalNumbers.copy();
+            e164Numbers = mE164Numbers.copy();
+            modCount = mModCount;
+        }
+        final BloomFilter filter = buildFilter(originalNumbers, e164Numbers);
+        synchronized (this) {
+            if (mModCount == modCount && mLoaded) {
+                installFilterLocked(filter);
+            }
+        }
+    }
+
+    private boolean isFilterRebuildNeededLocked() {
+        return mLoaded && (mFilterStale || mFilter == null
+                || mFilter.size() > mFilter.getCapacity());
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Index: loaded=" + mLoaded + " originalNumbers=" + mOriginalNumbers.size()
+                + " e164Numbers=" + mE164Numbers.size());
+        pw.println("  unencodedNumbers=" + (mOriginalNumbers.getOtherNumberCount()
+                + mE164Numbers.getOtherNumberCount()) + " bytes="
+                + (mOriginalNumbers.getMemorySizeBytes() + mE164Numbers.getMemorySizeBytes()));
+        pw.println("  probes=" + mProbeCount + " filterNegatives=" + mFilterNegativeCount
+                + " filterFalsePositives=" + mFilterFalsePositiveCount);
+        if (mFilter != null) {
+            pw.println(String.format("  filter: entries=%d capacity=%d hashes=%d bytes=%d"
+                    + " expectedFpRate=%.5f observedFpRate=%.5f stale=%b rebuilds=%d",
+                    mFilter.size(), mFilter.getCapacity(), mFilter.getNumHashes(),
+                    mFilter.getMemorySizeBytes(), mFilter.getExpectedFalsePositiveRate(),
+                    getObservedFalsePositiveRateLocked(), mFilterStale, mFilterRebuildCount));
+        }
+    }
+
+    private double getObservedFalsePositiveRateLocked() {
+        final long negatives = mFilterNegativeCount + mFilterFalsePositiveCount;
+        return negatives == 0 ? 0 : (double) mFilterFalsePositiveCount / negatives;
+    }
+
+    private boolean filterMightContainLocked(String number, long key) {
+        return key != NumberKeySet.NO_KEY
+                ? mFilter.mightContain(key) : mFilter.mightContain(number);
+    }
+
+    private void addLocked(String originalNumber, String e164Number) {
+        mModCount++;
+        if (mOriginalNumbers.add(originalNumber)) {
+            putInFilterLocked(originalNumber);
+        }
+        if (!TextUtils.isEmpty(e164Number) && mE164Numbers.add(e164Number)) {
+            putInFilterLocked(e164Number);
+        }
+    }
+
+    private void putInFilterLocked(String number) {
+        if (mFilter == null) {
+            return;
+        }
+        final long key = NumberKeySet.encode(number);
+        if (key != NumberKeySet.NO_KEY) {
+            mFilter.put(key);
+        } else {
+            mFilter.put(number);
+        }
+    }
+
+    private void rebuildFilterLocked() {
+        installFilterLocked(buildFilter(mOriginalNumbers, mE164Numbers));
+    }
+
+    private BloomFilter buildFilter(NumberKeySet originalNumbers, NumberKeySet e164Numbers) {
+        final int entries = originalNumbers.size() + e164Numbers.size();
+        // Leave room to grow so that inserts don't trigger a rebuild every time.
+        final BloomFilter filter = new BloomFilter(
+                Math.max(MIN_FILTER_CAPACITY, entries * 2), mFilterFalsePositiveRate);
+        originalNumbers.putAll(filter);
+        e164Numbers.putAll(filter);
+        return filter;
+    }
+
+    private void installFilterLocked(BloomFilter filter) {
+        mFilter = filter;
+        mFilterStale = false;
+        mFilterRebuildCount++;
+    }
+}
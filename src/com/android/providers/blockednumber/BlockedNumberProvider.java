@@ -20,23 +20,35 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.AppOpsManager;
 import android.app.backup.BackupManager;
+import android.content.BroadcastReceiver;
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.os.PersistableBundle;
 import android.os.Process;
+import android.os.ResultReceiver;
 import android.os.UserManager;
 import android.provider.BlockedNumberContract;
 import android.provider.BlockedNumberContract.SystemContract;
@@ -45,13 +57,30 @@ import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.Patterns;
 
 import com.android.common.content.ProjectionMap;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
+import com.android.internal.telephony.TelephonyIntents;
 import com.android.providers.blockednumber.BlockedNumberDatabaseHelper.Tables;
 
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Blocked phone number provider.
@@ -66,12 +95,73 @@ public class BlockedNumberProvider extends ContentProvider {
 
     private static final int BLOCKED_LIST = 1000;
     private static final int BLOCKED_ID = 1001;
+    private static final int RULES_LIST = 2000;
+    private static final int RULES_ID = 2001;
 
     private static final UriMatcher sUriMatcher;
 
+    /**
+     * Checks whether each number of the {@link #EXTRA_PHONE_NUMBERS} string array is blocked, in
+     * a single call.  The result is returned as a boolean array in
+     * {@link #RES_NUMBERS_ARE_BLOCKED}, in the same order.  At most
+     * {@link #MAX_IS_BLOCKED_BATCH_SIZE} numbers can be checked per call.  Requires the same
+     * permissions as {@link BlockedNumberContract#METHOD_IS_BLOCKED}.
+     */
+    public static final String METHOD_IS_BLOCKED_BATCH = "is_blocked_batch";
+    public static final String EXTRA_PHONE_NUMBERS = "extra_phone_numbers";
+    public static final String RES_NUMBERS_ARE_BLOCKED = "blocked_numbers_are_blocked";
+    /** Keeps the query run while the index is not loaded under SQLite's 999 variables. */
+    public static final int MAX_IS_BLOCKED_BATCH_SIZE = 400;
+
+    /**
+     * Blocks the numbers read from the {@link ParcelFileDescriptor} passed as
+     * {@link #EXTRA_FILE_DESCRIPTOR}, which holds one number per line in UTF-8.  Empty lines and
+     * lines starting with '#' are skipped.  A file starting with the header of the CSV export is
+     * read as such, taking the original number of each row.  Lines which are neither a phone
+     * number, i.e. digits with an optional leading '+', separators and '*' or '#', nor an email
+     * address are rejected.  The file is read and committed in chunks, so it may be arbitrarily
+     * large, and the call returns once it's fully imported.
+     *
+     * <p>If a {@link ResultReceiver} is passed as {@link #EXTRA_PROGRESS_RECEIVER}, it's sent
+     * {@link #RES_NUM_ROWS_IMPORTED} and {@link #RES_NUM_ROWS_REJECTED} after each chunk.  The
+     * result holds the same values, plus {@link #RES_REJECTED_LINES}.  Requires the same
+     * permissions as inserting into {@link BlockedNumberContract.BlockedNumbers#CONTENT_URI}.
+     */
+    public static final String METHOD_IMPORT = "import_blocked_numbers";
+    public static final String EXTRA_FILE_DESCRIPTOR = "extra_file_descriptor";
+    public static final String EXTRA_PROGRESS_RECEIVER = "extra_progress_receiver";
+    public static final String RES_NUM_ROWS_IMPORTED = "num_rows_imported";
+    public static final String RES_NUM_ROWS_REJECTED = "num_rows_rejected";
+    /** The line numbers, starting at 1, of the first {@link #MAX_REPORTED_REJECTS} rejects. */
+    public static final String RES_REJECTED_LINES = "rejected_lines";
+
+    /** Number of lines normalized and committed together by {@link #METHOD_IMPORT}. */
+    private static final int IMPORT_CHUNK_SIZE = 500;
+    private static final int MAX_IMPORT_THREADS = 4;
+    private static final int MAX_REPORTED_REJECTS = 100;
+    /** Characters other than digits and a leading '+' allowed in imported phone numbers. */
+    private static final String IMPORT_NUMBER_CHARS = " -.()/*#";
+
+    /**
+     * Query parameter of {@link BlockedNumberContract.BlockedNumbers#CONTENT_URI} limiting the
+     * number of rows returned.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameter of {@link BlockedNumberContract.BlockedNumbers#CONTENT_URI} restricting
+     * the result to rows whose ID is greater than the given one, in ascending ID order.
+     * Together with {@link #QUERY_PARAMETER_LIMIT}, this pages through the list: each page
+     * starts after the last ID of the previous one, so pages neither skip nor repeat rows when
+     * other rows are inserted or deleted in between, and don't get slower further down the
+     * list.
+     */
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /** Changes reported within this window are notified together. */
+    private static final long DATA_CHANGE_WINDOW_MILLIS = 100;
+
     private static final String PREF_FILE = "block_number_provider_prefs";
-    private static final String BLOCK_SUPPRESSION_EXPIRY_TIME_PREF =
-            "block_suppression_expiry_time_pref";
     private static final int MAX_BLOCKING_DISABLED_DURATION_SECONDS = 7 * 24 * 3600; // 1 week
     private static final long BLOCKING_DISABLED_FOREVER = -1;
     // Normally, we allow calls from self, *except* in unit tests, where we clear this flag
@@ -83,6 +173,54 @@ public class BlockedNumberProvider extends ContentProvider {
         sUriMatcher = new UriMatcher(0);
         sUriMatcher.addURI(BlockedNumberContract.AUTHORITY, "blocked", BLOCKED_LIST);
         sUriMatcher.addURI(BlockedNumberContract.AUTHORITY, "blocked/#", BLOCKED_ID);
+        sUriMatcher.addURI(BlockedNumberContract.AUTHORITY, "rules", RULES_LIST);
+        sUriMatcher.addURI(BlockedNumberContract.AUTHORITY, "rules/#", RULES_ID);
+    }
+
+    /**
+     * Rules blocking ranges of numbers rather than single numbers.  Rules apply to the E164 form
+     * of the checked number, and are taken into account by
+     * {@link BlockedNumberContract#METHOD_IS_BLOCKED} and
+     * {@link SystemContract#METHOD_SHOULD_SYSTEM_BLOCK_NUMBER}.  Rules can be inserted, queried
+     * and deleted like blocked numbers, with the same permissions.  Unlike blocked numbers,
+     * rules are not backed up.
+     */
+    public static final class BlockingRules {
+        private BlockingRules() {
+        }
+
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BlockedNumberContract.AUTHORITY_URI, "rules");
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/blocked_number_rule";
+
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/blocked_number_rule";
+
+        /** Auto-generated ID field. */
+        public static final String COLUMN_ID = "_id";
+
+        /** The rule type, one of the {@code TYPE_} constants.  Required on insert. */
+        public static final String COLUMN_TYPE = "rule_type";
+
+        /**
+         * The rule itself, whose format depends on {@link #COLUMN_TYPE}.  Formatting characters
+         * are dropped on insert.  Required on insert.
+         */
+        public static final String COLUMN_RULE = "rule";
+
+        /**
+         * Blocks all numbers starting with the rule, which is a '+' followed by the country code
+         * and optionally more digits, e.g. "+1900".
+         */
+        public static final int TYPE_PREFIX = 1;
+
+        /**
+         * Blocks all numbers matching the rule, which is a '+' followed by digits or '?', matching
+         * any single digit, optionally ending with '*', matching any remaining digits, e.g.
+         * "+1555???0000" or "+1650253*".
+         */
+        public static final int TYPE_PATTERN = 2;
     }
 
     private static final ProjectionMap sBlockedNumberColumns = ProjectionMap.builder()
@@ -91,27 +229,183 @@ public class BlockedNumberProvider extends ContentProvider {
             .add(BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER)
             .build();
 
+    private static final ProjectionMap sRuleColumns = ProjectionMap.builder()
+            .add(BlockingRules.COLUMN_ID)
+            .add(BlockingRules.COLUMN_TYPE)
+            .add(BlockingRules.COLUMN_RULE)
+            .build();
+
     private static final String ID_SELECTION =
             BlockedNumberContract.BlockedNumbers.COLUMN_ID + "=?";
 
+    private static final String AFTER_ID_SELECTION =
+            BlockedNumberContract.BlockedNumbers.COLUMN_ID + ">?";
+
+    private static final String ID_SORT_ORDER =
+            BlockedNumberContract.BlockedNumbers.COLUMN_ID + " ASC";
+
     private static final String ORIGINAL_NUMBER_SELECTION =
             BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER + "=?";
 
-    private static final String E164_NUMBER_SELECTION =
+    private static final String ORIGINAL_NUMBER_OR_LOOKUP_KEY_SELECTION =
+            ORIGINAL_NUMBER_SELECTION + " or " +
+            BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY + "=?";
+
+    /** For E164 numbers which have no lookup key; see {@link #IS_BLOCKED_QUERY}. */
+    private static final String UNKEYED_E164_NUMBER_SELECTION =
+            BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY + " IS NULL and " +
             BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER + "=?";
 
+    private static final String ORIGINAL_NUMBER_OR_UNKEYED_E164_NUMBER_SELECTION =
+            ORIGINAL_NUMBER_SELECTION + " or (" + UNKEYED_E164_NUMBER_SELECTION + ")";
+
+    private static final String FIND_E164_NUMBER_QUERY = "SELECT " +
+            BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER + " FROM " +
+            Tables.BLOCKED_NUMBERS + " WHERE " + ORIGINAL_NUMBER_SELECTION;
+
+    /**
+     * Answers {@link #isBlocked} with one statement while the index is not loaded: ?1 is the
+     * original number, ?2 the lookup key of its E164 number, if any, and ?3 the E164 number
+     * itself when it has no lookup key, e.g. an email address.  Each term is one index probe:
+     * on the UNIQUE original number index, on the partial lookup key index, and on the partial
+     * index of E164 numbers without a lookup key.  A number blocked as entered still matches
+     * after the country changes its E164 form, so the terms can't be folded into one key.
+     */
+    private static final String IS_BLOCKED_QUERY = "SELECT EXISTS (SELECT 1 FROM " +
+            Tables.BLOCKED_NUMBERS + " WHERE " +
+            BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER + "=?1 OR " +
+            BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY + "=?2 OR (" +
+            BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY + " IS NULL AND " +
+            BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER + "=?3))";
+
+    /**
+     * Answers {@link #matchesRules} with one statement while the rules are not loaded: ?1 is the
+     * E164 number.  Canonical rules only hold '+', digits, '?' and a trailing '*', which mean the
+     * same in GLOB patterns as in {@link BlockingRules#TYPE_PATTERN} rules.
+     */
+    private static final String MATCHES_RULES_QUERY = "SELECT EXISTS (SELECT 1 FROM " +
+            Tables.RULES + " WHERE (" +
+            BlockingRules.COLUMN_TYPE + "=" + BlockingRules.TYPE_PREFIX + " AND ?1 GLOB " +
+            BlockingRules.COLUMN_RULE + " || '*') OR (" +
+            BlockingRules.COLUMN_TYPE + "=" + BlockingRules.TYPE_PATTERN + " AND ?1 GLOB " +
+            BlockingRules.COLUMN_RULE + "))";
+
     @VisibleForTesting
     protected BlockedNumberDatabaseHelper mDbHelper;
     @VisibleForTesting
     protected BackupManager mBackupManager;
 
+    private final BlockedNumberIndex mIndex = new BlockedNumberIndex();
+
+    private final AtomicBoolean mBackgroundLoadScheduled = new AtomicBoolean();
+
+    private final Runnable mBackgroundLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+                mIndex.ensureLoaded(db);
+                mRules.ensureLoaded(db);
+            } finally {
+                mBackgroundLoadScheduled.set(false);
+            }
+        }
+    };
+
+    private final AtomicBoolean mFilterRebuildScheduled = new AtomicBoolean();
+
+    private final Runnable mRebuildFilterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so that a write racing the rebuild schedules another one.
+            mFilterRebuildScheduled.set(false);
+            mIndex.rebuildFilterIfNeeded();
+        }
+    };
+
+    private final BlockingRuleMatcher mRules = new BlockingRuleMatcher();
+
+    private final SqlCache mSqlCache = new SqlCache();
+
+    private final CallerPrivilegeCache mCallerPrivilegeCache = new CallerPrivilegeCache();
+
+    private final DataChangeDispatcher.Callback mDataChangeCallback =
+            new DataChangeDispatcher.Callback() {
+                @Override
+                public void onDataChanged(ArraySet<Uri> changedUris) {
+                    boolean backupNeeded = false;
+                    for (Uri uri : changedUris) {
+                        getContext().getContentResolver().notifyChange(uri, null);
+                        // Rules are not backed up; they stay on the device.
+                        final int match = sUriMatcher.match(uri);
+                        backupNeeded |= match == BLOCKED_LIST || match == BLOCKED_ID;
+                    }
+                    if (backupNeeded) {
+                        mBackupManager.dataChanged();
+                    }
+                }
+            };
+
+    private volatile DataChangeDispatcher mDataChangeDispatcher = new DataChangeDispatcher(
+            BackgroundThread.getHandler(), DATA_CHANGE_WINDOW_MILLIS, mDataChangeCallback);
+
+    /** URIs changed by the {@link #applyBatch} running on the current thread, if any. */
+    private final ThreadLocal<ArraySet<Uri>> mBatchChangedUris = new ThreadLocal<>();
+
+    /**
+     * Latest snapshot of {@link #PREF_FILE}, rebuilt on each write under {@link #mSettingsLock}.
+     */
+    private volatile BlockSettings mSettings;
+    private final Object mSettingsLock = new Object();
+
+    /** The carrier config values used by the provider; {@code null} until read. */
+    private volatile CarrierConfigValues mCarrierConfigValues;
+
+    /** Whether the current user can block numbers.  This doesn't change during our lifetime. */
+    private volatile Boolean mCanCurrentUserBlockUsers;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (DEBUG) {
+                Log.d(TAG, "Received " + action);
+            }
+            if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)
+                    || TelephonyIntents.ACTION_SIM_STATE_CHANGED.equals(action)) {
+                mCarrierConfigValues = null;
+            }
+            // Default dialer, carrier privilege or package changes.
+            mCallerPrivilegeCache.invalidate();
+        }
+    };
+
     @Override
     public boolean onCreate() {
         mDbHelper = BlockedNumberDatabaseHelper.getInstance(getContext());
         mBackupManager = new BackupManager(getContext());
+        Utils.startCountryMonitoring(getContext());
+        registerReceivers();
         return true;
     }
 
+    @VisibleForTesting
+    void registerReceivers() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED);
+        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        getContext().registerReceiver(mReceiver, filter);
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        getContext().registerReceiver(mReceiver, packageFilter);
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -120,11 +414,44 @@ public class BlockedNumberProvider extends ContentProvider {
                 return BlockedNumberContract.BlockedNumbers.CONTENT_TYPE;
             case BLOCKED_ID:
                 return BlockedNumberContract.BlockedNumbers.CONTENT_ITEM_TYPE;
+            case RULES_LIST:
+                return BlockingRules.CONTENT_TYPE;
+            case RULES_ID:
+                return BlockingRules.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
     }
 
+    /**
+     * The blocked list can be streamed as {@link BlockedNumberExporter#MIME_TYPE}.
+     */
+    @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) == BLOCKED_LIST && ClipDescription.compareMimeTypes(
+                BlockedNumberExporter.MIME_TYPE, mimeTypeFilter)) {
+            return new String[] {BlockedNumberExporter.MIME_TYPE};
+        }
+        return null;
+    }
+
+    /**
+     * Streams the blocked list as CSV through a pipe, written on a background thread.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri,
+            @NonNull String mimeTypeFilter, @Nullable Bundle opts)
+            throws FileNotFoundException {
+        enforceReadPermissionAndPrimaryUser();
+
+        if (getStreamTypes(uri, mimeTypeFilter) == null) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        final ParcelFileDescriptor pfd = openPipeHelper(uri, BlockedNumberExporter.MIME_TYPE,
+                opts, null, new BlockedNumberExporter(mDbHelper));
+        return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
         enforceWritePermissionAndPrimaryUser();
@@ -133,18 +460,348 @@ public class BlockedNumberProvider extends ContentProvider {
         switch (match) {
             case BLOCKED_LIST:
                 Uri blockedUri = insertBlockedNumber(values);
-                getContext().getContentResolver().notifyChange(blockedUri, null);
-                mBackupManager.dataChanged();
+                onDataChanged(blockedUri);
                 return blockedUri;
+            case RULES_LIST:
+                Uri ruleUri = insertRule(values);
+                onDataChanged(ruleUri);
+                return ruleUri;
+            default:
+                throw new IllegalArgumentException("Unsupported URI: " + uri);
+        }
+    }
+
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        enforceWritePermissionAndPrimaryUser();
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BLOCKED_LIST:
+                final int numRows = bulkInsertBlockedNumbers(values);
+                if (numRows > 0) {
+                    onDataChanged(uri);
+                }
+                return numRows;
             default:
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
     }
 
+    /**
+     * Applies all operations within a single transaction.  Change notifications and backup
+     * requests are deferred until the transaction commits, and sent only once, with the URIs of
+     * rows collapsed into the URI of their table.
+     */
+    @Override
+    public @NonNull ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Each operation checks its own permissions, but don't let callers which can't write
+        // take the write lock, even with an empty batch.
+        enforceWritePermissionAndPrimaryUser();
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final ArraySet<Uri> changedUris = new ArraySet<>();
+        final ContentProviderResult[] results;
+        boolean success = false;
+        mBatchChangedUris.set(changedUris);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            mBatchChangedUris.remove();
+            endTransaction(db, success);
+        }
+        for (Uri uri : DataChangeDispatcher.collapseToParents(changedUris)) {
+            mDataChangeDispatcher.onDataChanged(uri);
+        }
+        return results;
+    }
+
+    /**
+     * Schedules observer notifications and a backup request for {@code uri}, or defers them until
+     * the end of {@link #applyBatch} if one is running on this thread.
+     */
+    private void onDataChanged(Uri uri) {
+        final ArraySet<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            batchChangedUris.add(uri);
+            return;
+        }
+        mDataChangeDispatcher.onDataChanged(uri);
+    }
+
+    /**
+     * Posts change notifications and backup requests to {@code handler} rather than the
+     * background thread.
+     */
+    @VisibleForTesting
+    void setDataChangeHandler(Handler handler) {
+        mDataChangeDispatcher = new DataChangeDispatcher(
+                handler, DATA_CHANGE_WINDOW_MILLIS, mDataChangeCallback);
+    }
+
+    /**
+     * Delivers pending change notifications and backup requests now.
+     */
+    @VisibleForTesting
+    void flushDataChanges() {
+        mDataChangeDispatcher.flush();
+    }
+
+    /**
+     * Loads the index and the rules now rather than in the background on first use.
+     */
+    @VisibleForTesting
+    void ensureLoaded() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        mIndex.ensureLoaded(db);
+        mRules.ensureLoaded(db);
+    }
+
+    /**
+     * Implements the "blocked/" bulk insert.  All rows are validated and normalized first, then
+     * inserted within one transaction, so that either all of them or none are committed.
+     */
+    private int bulkInsertBlockedNumbers(ContentValues[] values) {
+        for (ContentValues cv : values) {
+            prepareBlockedNumber(cv);
+        }
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int numRows = 0;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues cv : values) {
+                if (insertPreparedBlockedNumber(db, cv) >= 0) {
+                    numRows++;
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            endTransaction(db, success);
+        }
+        return numRows;
+    }
+
     /**
      * Implements the "blocked/" insert.
      */
     private Uri insertBlockedNumber(ContentValues cv) {
+        prepareBlockedNumber(cv);
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final long id;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            id = insertPreparedBlockedNumber(db, cv);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            endTransaction(db, success);
+        }
+
+        return ContentUris.withAppendedId(BlockedNumberContract.BlockedNumbers.CONTENT_URI, id);
+    }
+
+    /**
+     * Implements {@link #METHOD_IMPORT}.  While a chunk is committed, the next one is read and
+     * normalized on a pool of threads, {@link Utils#getE164Number} being the costly part.  Each
+     * chunk is committed in its own transaction, letting readers and other writers in between.
+     */
+    private void importBlockedNumbers(Bundle extras, Bundle res) {
+        final ParcelFileDescriptor pfd = extras == null ? null
+                : (ParcelFileDescriptor) extras.getParcelable(EXTRA_FILE_DESCRIPTOR);
+        if (pfd == null) {
+            throw new IllegalArgumentException("Missing " + EXTRA_FILE_DESCRIPTOR);
+        }
+        final ResultReceiver progressReceiver = extras.getParcelable(EXTRA_PROGRESS_RECEIVER);
+
+        final ImportStats stats = new ImportStats();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                MAX_IMPORT_THREADS, Runtime.getRuntime().availableProcessors()));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(pfd), StandardCharsets.UTF_8))) {
+            ImportChunk chunk = readImportChunk(reader, null, executor);
+            while (chunk != null) {
+                final ImportChunk next = readImportChunk(reader, chunk, executor);
+                commitImportChunk(chunk, stats);
+                if (progressReceiver != null) {
+                    progressReceiver.send(0, stats.toBundle(false));
+                }
+                chunk = next;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read blocked numbers", e);
+        } finally {
+            executor.shutdownNow();
+            if (stats.numImported > 0) {
+                onDataChanged(BlockedNumberContract.BlockedNumbers.CONTENT_URI);
+            }
+        }
+        res.putAll(stats.toBundle(true));
+    }
+
+    /**
+     * Reads up to {@link #IMPORT_CHUNK_SIZE} numbers following the {@code previous} chunk and
+     * starts normalizing the valid ones on {@code executor}.
+     *
+     * @return the chunk, or {@code null} at the end of the file.
+     */
+    private ImportChunk readImportChunk(BufferedReader reader, ImportChunk previous,
+            ExecutorService executor) throws IOException {
+        final ImportChunk chunk = new ImportChunk();
+        int lastLineNumber = previous == null ? 0 : previous.lastLineNumber;
+        chunk.isCsv = previous != null && previous.isCsv;
+        String line;
+        while (chunk.lineNumbers.length > chunk.size && (line = reader.readLine()) != null) {
+            lastLineNumber++;
+            line = line.trim();
+            if (lastLineNumber == 1 && line.equals(BlockedNumberExporter.HEADER)) {
+                chunk.isCsv = true;
+                continue;
+            }
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String number = chunk.isCsv
+                    ? BlockedNumberExporter.parseOriginalNumber(line) : line;
+            chunk.lineNumbers[chunk.size] = lastLineNumber;
+            if (isImportableNumber(number)) {
+                chunk.values[chunk.size] = new ContentValues(2);
+                chunk.values[chunk.size].put(
+                        BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER, number);
+            }
+            chunk.size++;
+        }
+        chunk.lastLineNumber = lastLineNumber;
+        if (chunk.size == 0) {
+            return null;
+        }
+
+        final int numTasks = Math.min(MAX_IMPORT_THREADS, chunk.size);
+        for (int task = 0; task < numTasks; task++) {
+            final int start = chunk.size * task / numTasks;
+            final int end = chunk.size * (task + 1) / numTasks;
+            chunk.futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = start; i < end; i++) {
+                        if (chunk.values[i] == null) {
+                            continue;
+                        }
+                        try {
+                            prepareBlockedNumber(chunk.values[i]);
+                        } catch (IllegalArgumentException e) {
+                            chunk.values[i] = null;
+                        }
+                    }
+                }
+            }));
+        }
+        return chunk;
+    }
+
+    private void commitImportChunk(ImportChunk chunk, ImportStats stats) {
+        // Wait for the normalization to complete.
+        for (Future<?> future : chunk.futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Import interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to normalize blocked numbers", e);
+            }
+        }
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < chunk.size; i++) {
+                if (chunk.values[i] != null
+                        && insertPreparedBlockedNumber(db, chunk.values[i]) >= 0) {
+                    stats.numImported++;
+                } else {
+                    stats.addReject(chunk.lineNumbers[i]);
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            endTransaction(db, success);
+        }
+    }
+
+    /**
+     * @return whether {@code number}, a line of an import, is worth inserting: a phone number or
+     * an email address.
+     */
+    private static boolean isImportableNumber(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return false;
+        }
+        if (number.indexOf('@') >= 0) {
+            return Patterns.EMAIL_ADDRESS.matcher(number).matches();
+        }
+        boolean hasDigit = false;
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigit = true;
+            } else if (c == '+' ? i != 0 : IMPORT_NUMBER_CHARS.indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return hasDigit;
+    }
+
+    private static final class ImportChunk {
+        final int[] lineNumbers = new int[IMPORT_CHUNK_SIZE];
+        /** The rows to insert, {@code null} for the lines that failed validation. */
+        final ContentValues[] values = new ContentValues[IMPORT_CHUNK_SIZE];
+        final ArrayList<Future<?>> futures = new ArrayList<>(MAX_IMPORT_THREADS);
+        int size;
+        int lastLineNumber;
+        /** Whether the file is a CSV export, as told by its first line. */
+        boolean isCsv;
+    }
+
+    private static final class ImportStats {
+        int numImported;
+        int numRejected;
+        final int[] rejectedLines = new int[MAX_REPORTED_REJECTS];
+
+        void addReject(int lineNumber) {
+            if (numRejected < rejectedLines.length) {
+                rejectedLines[numRejected] = lineNumber;
+            }
+            numRejected++;
+        }
+
+        Bundle toBundle(boolean includeRejectedLines) {
+            final Bundle bundle = new Bundle();
+            bundle.putInt(RES_NUM_ROWS_IMPORTED, numImported);
+            bundle.putInt(RES_NUM_ROWS_REJECTED, numRejected);
+            if (includeRejectedLines) {
+                bundle.putIntArray(RES_REJECTED_LINES, Arrays.copyOf(rejectedLines,
+                        Math.min(numRejected, rejectedLines.length)));
+            }
+            return bundle;
+        }
+    }
+
+    /**
+     * Validates a row to insert and fills in the autogenerated columns.
+     */
+    private void prepareBlockedNumber(ContentValues cv) {
         throwIfSpecified(cv, BlockedNumberContract.BlockedNumbers.COLUMN_ID);
 
         final String phoneNumber = cv.getAsString(
@@ -159,17 +816,112 @@ public class BlockedNumberProvider extends ContentProvider {
         final String e164Number = Utils.getE164Number(getContext(), phoneNumber,
                 cv.getAsString(BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER));
         cv.put(BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER, e164Number);
+        cv.put(BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY,
+                BlockedNumberDatabaseHelper.getLookupKey(e164Number));
+    }
+
+    /**
+     * Inserts a row prepared by {@link #prepareBlockedNumber}.  Must be called within a
+     * transaction.
+     *
+     * @return the row ID, or -1 on failure.
+     */
+    private long insertPreparedBlockedNumber(SQLiteDatabase db, ContentValues cv) {
+        final String phoneNumber = cv.getAsString(
+                BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER);
+        final String e164Number = cv.getAsString(
+                BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER);
 
         if (DEBUG) {
             Log.d(TAG, String.format("inserted blocked number: %s", cv));
         }
 
-        // Then insert.
-        final long id = mDbHelper.getWritableDatabase().insertWithOnConflict(
+        // An existing row with the same original number gets replaced, so it has to be dropped
+        // from the index too.
+        if (mIndex.isLoaded()) {
+            final String replacedE164Number = findE164Number(db, phoneNumber);
+            if (replacedE164Number != null) {
+                mIndex.remove(phoneNumber, replacedE164Number);
+            }
+        }
+        final long id = db.insertWithOnConflict(
                 BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS, null, cv,
                 SQLiteDatabase.CONFLICT_REPLACE);
+        if (id >= 0) {
+            mIndex.add(phoneNumber, e164Number);
+        }
+        return id;
+    }
 
-        return ContentUris.withAppendedId(BlockedNumberContract.BlockedNumbers.CONTENT_URI, id);
+    /**
+     * @return the E164 number of the row whose original number is {@code originalNumber}, "" if
+     * the row has no E164 number, or {@code null} if there's no such row.
+     */
+    private String findE164Number(SQLiteDatabase db, String originalNumber) {
+        final SQLiteStatement statement = mSqlCache.acquireStatement(db, FIND_E164_NUMBER_QUERY);
+        try {
+            statement.bindString(1, originalNumber);
+            final String e164Number = statement.simpleQueryForString();
+            return e164Number == null ? "" : e164Number;
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            mSqlCache.releaseStatement(db, FIND_E164_NUMBER_QUERY, statement);
+        }
+    }
+
+    /**
+     * Implements the "rules/" insert.
+     */
+    private Uri insertRule(ContentValues cv) {
+        throwIfSpecified(cv, BlockingRules.COLUMN_ID);
+
+        final Integer type = cv.getAsInteger(BlockingRules.COLUMN_TYPE);
+        if (type == null) {
+            throw new IllegalArgumentException("Missing a required column "
+                    + BlockingRules.COLUMN_TYPE);
+        }
+        final String rule = BlockingRuleMatcher.normalizeRule(
+                type, cv.getAsString(BlockingRules.COLUMN_RULE));
+        cv.put(BlockingRules.COLUMN_RULE, rule);
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final long id;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            id = db.insertWithOnConflict(Tables.RULES, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+            if (id >= 0) {
+                mRules.add(type, rule);
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            endTransaction(db, success);
+        }
+
+        return ContentUris.withAppendedId(BlockingRules.CONTENT_URI, id);
+    }
+
+    /**
+     * Ends a transaction which may have modified {@link #mIndex} or {@link #mRules}.  If the
+     * transaction did not succeed, they no longer match the database and are reloaded on next
+     * use.  Otherwise the Bloom filter of the index is rebuilt in the background if needed.
+     */
+    private void endTransaction(SQLiteDatabase db, boolean success) {
+        try {
+            db.endTransaction();
+        } finally {
+            if (success) {
+                if (mIndex.isFilterRebuildNeeded()
+                        && mFilterRebuildScheduled.compareAndSet(false, true)) {
+                    BackgroundThread.getHandler().post(mRebuildFilterRunnable);
+                }
+            } else {
+                mIndex.invalidate();
+                mRules.invalidate();
+            }
+        }
     }
 
     private static void throwIfSpecified(ContentValues cv, String column) {
@@ -201,11 +953,18 @@ public class BlockedNumberProvider extends ContentProvider {
             case BLOCKED_ID:
                 numRows = deleteBlockedNumberWithId(ContentUris.parseId(uri), selection);
                 break;
+            case RULES_LIST:
+                numRows = deleteRules(selection, selectionArgs);
+                break;
+            case RULES_ID:
+                throwForNonEmptySelection(selection);
+                numRows = deleteRules(ID_SELECTION,
+                        new String[]{Long.toString(ContentUris.parseId(uri))});
+                break;
             default:
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
-        mBackupManager.dataChanged();
+        onDataChanged(uri);
         return numRows;
     }
 
@@ -231,9 +990,65 @@ public class BlockedNumberProvider extends ContentProvider {
                     /* cancellationSignal =*/ null);
         }
 
-        return db.delete(
-                BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS,
-                selection, selectionArgs);
+        int numRows;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            // Collect the rows about to be deleted so that they can be dropped from the index.
+            if (mIndex.isLoaded()) {
+                try (Cursor c = db.query(BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS,
+                        new String[] {
+                                BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER,
+                                BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER},
+                        selection, selectionArgs, null, null, null)) {
+                    while (c.moveToNext()) {
+                        mIndex.remove(c.getString(0), c.getString(1));
+                    }
+                }
+            }
+            numRows = db.delete(
+                    BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS,
+                    selection, selectionArgs);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            endTransaction(db, success);
+        }
+        return numRows;
+    }
+
+    /**
+     * Implements the "rules/" delete.
+     */
+    private int deleteRules(String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        if (!TextUtils.isEmpty(selection)) {
+            db.validateSql("select 1 FROM " + Tables.RULES + " WHERE " +
+                    Utils.wrapSelectionWithParens(selection),
+                    /* cancellationSignal =*/ null);
+        }
+
+        int numRows;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            if (mRules.isLoaded()) {
+                try (Cursor c = db.query(Tables.RULES,
+                        new String[] {BlockingRules.COLUMN_TYPE, BlockingRules.COLUMN_RULE},
+                        selection, selectionArgs, null, null, null)) {
+                    while (c.moveToNext()) {
+                        mRules.remove(c.getInt(0), c.getString(1));
+                    }
+                }
+            }
+            numRows = db.delete(Tables.RULES, selection, selectionArgs);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            endTransaction(db, success);
+        }
+        return numRows;
     }
 
     @Override
@@ -254,13 +1069,23 @@ public class BlockedNumberProvider extends ContentProvider {
         Cursor cursor;
         switch (match) {
             case BLOCKED_LIST:
-                cursor = queryBlockedList(projection, selection, selectionArgs, sortOrder,
-                        cancellationSignal);
+                cursor = queryBlockedListPage(uri, projection, selection, selectionArgs,
+                        sortOrder, cancellationSignal);
                 break;
             case BLOCKED_ID:
                 cursor = queryBlockedListWithId(ContentUris.parseId(uri), projection, selection,
                         cancellationSignal);
                 break;
+            case RULES_LIST:
+                cursor = queryRules(projection, selection, selectionArgs, sortOrder,
+                        cancellationSignal);
+                break;
+            case RULES_ID:
+                throwForNonEmptySelection(selection);
+                cursor = queryRules(projection, ID_SELECTION,
+                        new String[]{Long.toString(ContentUris.parseId(uri))}, null,
+                        cancellationSignal);
+                break;
             default:
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
@@ -277,21 +1102,65 @@ public class BlockedNumberProvider extends ContentProvider {
         throwForNonEmptySelection(selection);
 
         return queryBlockedList(projection, ID_SELECTION, new String[]{Long.toString(id)},
-                null, cancellationSignal);
+                null, /* limit =*/ null, cancellationSignal);
     }
 
     /**
-     * Implements the "blocked/" query.
+     * Implements the "blocked/" query, honoring {@link #QUERY_PARAMETER_LIMIT} and
+     * {@link #QUERY_PARAMETER_AFTER_ID}.
      */
+    private Cursor queryBlockedListPage(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        final String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            checkNonNegativeLong(QUERY_PARAMETER_LIMIT, limit);
+        }
+        final String afterId = uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID);
+        if (afterId != null) {
+            checkNonNegativeLong(QUERY_PARAMETER_AFTER_ID, afterId);
+            if (sortOrder != null && !sortOrder.equals(ID_SORT_ORDER)
+                    && !sortOrder.equals(BlockedNumberContract.BlockedNumbers.COLUMN_ID)) {
+                throw new IllegalArgumentException(QUERY_PARAMETER_AFTER_ID
+                        + " requires ascending " + BlockedNumberContract.BlockedNumbers.COLUMN_ID
+                        + " order");
+            }
+            sortOrder = ID_SORT_ORDER;
+            selection = DatabaseUtils.concatenateWhere(AFTER_ID_SELECTION, selection);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(
+                    new String[] {afterId}, selectionArgs);
+        } else if (limit != null && sortOrder == null) {
+            // Pages must have a stable order.
+            sortOrder = ID_SORT_ORDER;
+        }
+        return queryBlockedList(projection, selection, selectionArgs, sortOrder, limit,
+                cancellationSignal);
+    }
+
+    private static void checkNonNegativeLong(String name, String value) {
+        try {
+            if (Long.parseLong(value) >= 0) {
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through.
+        }
+        throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+
     private Cursor queryBlockedList(String[] projection, String selection, String[] selectionArgs,
-            String sortOrder, CancellationSignal cancellationSignal) {
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setStrict(true);
-        qb.setTables(BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS);
-        qb.setProjectionMap(sBlockedNumberColumns);
+            String sortOrder, String limit, CancellationSignal cancellationSignal) {
+        return mSqlCache.query(mDbHelper.getReadableDatabase(), Tables.BLOCKED_NUMBERS,
+                sBlockedNumberColumns, projection, selection, selectionArgs, sortOrder,
+                limit, cancellationSignal);
+    }
 
-        return qb.query(mDbHelper.getReadableDatabase(), projection, selection, selectionArgs,
-                /* groupBy =*/ null, /* having =*/null, sortOrder,
+    /**
+     * Implements the "rules/" query.
+     */
+    private Cursor queryRules(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, CancellationSignal cancellationSignal) {
+        return mSqlCache.query(mDbHelper.getReadableDatabase(), Tables.RULES, sRuleColumns,
+                projection, selection, selectionArgs, sortOrder,
                 /* limit =*/ null, cancellationSignal);
     }
 
@@ -311,6 +1180,17 @@ public class BlockedNumberProvider extends ContentProvider {
 
                 res.putBoolean(BlockedNumberContract.RES_NUMBER_IS_BLOCKED, isBlocked(arg));
                 break;
+            case METHOD_IS_BLOCKED_BATCH:
+                enforceReadPermissionAndPrimaryUser();
+
+                res.putBooleanArray(RES_NUMBERS_ARE_BLOCKED, isBlocked(
+                        extras == null ? null : extras.getStringArray(EXTRA_PHONE_NUMBERS)));
+                break;
+            case METHOD_IMPORT:
+                enforceWritePermissionAndPrimaryUser();
+
+                importBlockedNumbers(extras, res);
+                break;
             case BlockedNumberContract.METHOD_CAN_CURRENT_USER_BLOCK_NUMBERS:
                 // No permission checks: any app should be able to access this API.
                 res.putBoolean(
@@ -334,7 +1214,8 @@ public class BlockedNumberProvider extends ContentProvider {
             case SystemContract.METHOD_GET_BLOCK_SUPPRESSION_STATUS:
                 enforceSystemReadPermissionAndPrimaryUser();
 
-                SystemContract.BlockSuppressionStatus status = getBlockSuppressionStatus();
+                SystemContract.BlockSuppressionStatus status =
+                        getBlockSuppressionStatus(getSettings());
                 res.putBoolean(SystemContract.RES_IS_BLOCKING_SUPPRESSED, status.isSuppressed);
                 res.putLong(SystemContract.RES_BLOCKING_SUPPRESSED_UNTIL_TIMESTAMP,
                         status.untilTimestampMillis);
@@ -379,14 +1260,17 @@ public class BlockedNumberProvider extends ContentProvider {
             return 0;
         }
 
-        StringBuilder selectionBuilder = new StringBuilder(ORIGINAL_NUMBER_SELECTION);
+        String selection = ORIGINAL_NUMBER_SELECTION;
         String[] selectionArgs = new String[]{phoneNumber};
         final String e164Number = Utils.getE164Number(getContext(), phoneNumber, null);
-        if (!TextUtils.isEmpty(e164Number)) {
-            selectionBuilder.append(" or " + E164_NUMBER_SELECTION);
+        final Long lookupKey = BlockedNumberDatabaseHelper.getLookupKey(e164Number);
+        if (lookupKey != null) {
+            selection = ORIGINAL_NUMBER_OR_LOOKUP_KEY_SELECTION;
+            selectionArgs = new String[]{phoneNumber, Long.toString(lookupKey)};
+        } else if (!TextUtils.isEmpty(e164Number)) {
+            selection = ORIGINAL_NUMBER_OR_UNKEYED_E164_NUMBER_SELECTION;
             selectionArgs = new String[]{phoneNumber, e164Number};
         }
-        String selection = selectionBuilder.toString();
         if (DEBUG) {
             Log.d(TAG, String.format("Unblocking numbers using selection: %s, args: %s",
                     selection, Arrays.toString(selectionArgs)));
@@ -415,36 +1299,199 @@ public class BlockedNumberProvider extends ContentProvider {
             Log.d(TAG, String.format("isBlocked: in=%s, e164=%s", phoneNumber, inE164));
         }
 
-        final Cursor c = mDbHelper.getReadableDatabase().rawQuery(
-                "SELECT " +
-                BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER + "," +
-                BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER +
-                " FROM " + BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS +
-                " WHERE " + BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER + "=?1" +
-                " OR (?2 != '' AND " +
-                        BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER + "=?2)",
-                new String[] {phoneNumber, inE164}
-                );
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Boolean listed = mIndex.contains(phoneNumber, inE164);
+        if (listed == null) {
+            // The index is not loaded.  Don't make the caller wait for the whole list to load.
+            scheduleBackgroundLoad();
+            listed = queryIsBlocked(db, phoneNumber, inE164);
+        }
+        final boolean blocked = listed || matchesRules(db, inE164);
+        if (DEBUG && blocked) {
+            Log.d(TAG, String.format("match found: in=%s, e164=%s", phoneNumber, inE164));
+        }
+        return blocked;
+    }
+
+    private void scheduleBackgroundLoad() {
+        if (mBackgroundLoadScheduled.compareAndSet(false, true)) {
+            BackgroundThread.getHandler().post(mBackgroundLoadRunnable);
+        }
+    }
+
+    private boolean queryIsBlocked(SQLiteDatabase db, String phoneNumber, String e164Number) {
+        final SQLiteStatement statement = mSqlCache.acquireStatement(db, IS_BLOCKED_QUERY);
         try {
-            while (c.moveToNext()) {
-                if (DEBUG) {
-                    final String original = c.getString(0);
-                    final String e164 = c.getString(1);
+            statement.bindString(1, phoneNumber);
+            final Long lookupKey = BlockedNumberDatabaseHelper.getLookupKey(e164Number);
+            if (lookupKey != null) {
+                statement.bindLong(2, lookupKey);
+                statement.bindNull(3);
+            } else if (!TextUtils.isEmpty(e164Number)) {
+                statement.bindNull(2);
+                statement.bindString(3, e164Number);
+            } else {
+                statement.bindNull(2);
+                statement.bindNull(3);
+            }
+            return statement.simpleQueryForLong() != 0;
+        } finally {
+            mSqlCache.releaseStatement(db, IS_BLOCKED_QUERY, statement);
+        }
+    }
 
-                    Log.d(TAG, String.format("match found: original=%s, e164=%s", original, e164));
+    /**
+     * Implements {@link #METHOD_IS_BLOCKED_BATCH}.
+     */
+    private boolean[] isBlocked(String[] phoneNumbers) {
+        if (phoneNumbers == null) {
+            throw new IllegalArgumentException("Missing " + EXTRA_PHONE_NUMBERS);
+        }
+        if (phoneNumbers.length > MAX_IS_BLOCKED_BATCH_SIZE) {
+            throw new IllegalArgumentException("More than " + MAX_IS_BLOCKED_BATCH_SIZE
+                    + " numbers in " + EXTRA_PHONE_NUMBERS);
+        }
+        final String[] originalNumbers = new String[phoneNumbers.length];
+        final String[] e164Numbers = new String[phoneNumbers.length];
+        for (int i = 0; i < phoneNumbers.length; i++) {
+            if (!TextUtils.isEmpty(phoneNumbers[i])) {
+                originalNumbers[i] = phoneNumbers[i];
+                e164Numbers[i] = Utils.getE164Number(getContext(), phoneNumbers[i], null);
+            }
+        }
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        boolean[] blocked = mIndex.contains(originalNumbers, e164Numbers);
+        if (blocked == null) {
+            // Same as isBlocked(String): don't make the caller wait for the whole list to load.
+            scheduleBackgroundLoad();
+            blocked = queryAreBlocked(db, originalNumbers, e164Numbers);
+        }
+        for (int i = 0; i < blocked.length; i++) {
+            if (!blocked[i]) {
+                blocked[i] = matchesRules(db, e164Numbers[i]);
+            }
+        }
+        return blocked;
+    }
+
+    /**
+     * Batch version of {@link #queryIsBlocked}, which looks up all the numbers with one query.
+     * {@code null} original numbers are never blocked.
+     */
+    private boolean[] queryAreBlocked(SQLiteDatabase db, String[] originalNumbers,
+            String[] e164Numbers) {
+        final boolean[] blocked = new boolean[originalNumbers.length];
+        final Long[] lookupKeys = new Long[originalNumbers.length];
+        final ArrayList<String> args = new ArrayList<>();
+        final StringBuilder originalNumberArgs = new StringBuilder();
+        final StringBuilder lookupKeyArgs = new StringBuilder();
+        final StringBuilder unkeyedE164NumberArgs = new StringBuilder();
+        for (int i = 0; i < originalNumbers.length; i++) {
+            if (originalNumbers[i] == null) {
+                continue;
+            }
+            appendArg(originalNumberArgs, args, originalNumbers[i]);
+            lookupKeys[i] = BlockedNumberDatabaseHelper.getLookupKey(e164Numbers[i]);
+            if (lookupKeys[i] != null) {
+                appendArg(lookupKeyArgs, args, lookupKeys[i].toString());
+            } else if (!TextUtils.isEmpty(e164Numbers[i])) {
+                appendArg(unkeyedE164NumberArgs, args, e164Numbers[i]);
+            }
+        }
+        if (args.isEmpty()) {
+            return blocked;
+        }
+
+        final ArraySet<String> foundOriginalNumbers = new ArraySet<>();
+        final ArraySet<Long> foundLookupKeys = new ArraySet<>();
+        final ArraySet<String> foundUnkeyedE164Numbers = new ArraySet<>();
+        final String sql = "SELECT " + BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER
+                + ", " + BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY
+                + ", " + BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER
+                + " FROM " + Tables.BLOCKED_NUMBERS
+                + " WHERE " + BlockedNumberContract.BlockedNumbers.COLUMN_ORIGINAL_NUMBER
+                + " IN (" + originalNumberArgs + ")"
+                + (lookupKeyArgs.length() == 0 ? "" : " OR "
+                        + BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY
+                        + " IN (" + lookupKeyArgs + ")")
+                + (unkeyedE164NumberArgs.length() == 0 ? "" : " OR ("
+                        + BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY + " IS NULL AND "
+                        + BlockedNumberContract.BlockedNumbers.COLUMN_E164_NUMBER
+                        + " IN (" + unkeyedE164NumberArgs + "))");
+        try (Cursor c = db.rawQuery(sql, args.toArray(new String[args.size()]))) {
+            while (c.moveToNext()) {
+                foundOriginalNumbers.add(c.getString(0));
+                if (!c.isNull(1)) {
+                    foundLookupKeys.add(c.getLong(1));
+                } else if (!c.isNull(2)) {
+                    foundUnkeyedE164Numbers.add(c.getString(2));
                 }
-                return true;
             }
+        }
+        for (int i = 0; i < originalNumbers.length; i++) {
+            if (originalNumbers[i] == null) {
+                continue;
+            }
+            blocked[i] = foundOriginalNumbers.contains(originalNumbers[i])
+                    || (lookupKeys[i] != null
+                            ? foundLookupKeys.contains(lookupKeys[i])
+                            : !TextUtils.isEmpty(e164Numbers[i])
+                                    && foundUnkeyedE164Numbers.contains(e164Numbers[i]));
+        }
+        return blocked;
+    }
+
+    private static void appendArg(StringBuilder placeholders, ArrayList<String> args,
+            String arg) {
+        if (placeholders.length() > 0) {
+            placeholders.append(',');
+        }
+        placeholders.append('?');
+        args.add(arg);
+    }
+
+    /**
+     * @return whether {@code e164Number} matches one of the {@link BlockingRules}.
+     */
+    private boolean matchesRules(SQLiteDatabase db, String e164Number) {
+        if (TextUtils.isEmpty(e164Number)) {
+            return false;
+        }
+        final Boolean matches = mRules.matches(e164Number);
+        if (matches != null) {
+            return matches;
+        }
+        // Loading takes a transaction, which could wait for a long write; query the rules
+        // table directly meanwhile.
+        scheduleBackgroundLoad();
+        return queryMatchesRules(db, e164Number);
+    }
+
+    /**
+     * Answers {@link #matchesRules} from the rules table, without {@link #mRules}.
+     */
+    @VisibleForTesting
+    boolean queryMatchesRules(SQLiteDatabase db, String e164Number) {
+        if (TextUtils.isEmpty(e164Number) || e164Number.charAt(0) != '+') {
+            return false;
+        }
+        final SQLiteStatement statement = mSqlCache.acquireStatement(db, MATCHES_RULES_QUERY);
+        try {
+            statement.bindString(1, e164Number);
+            return statement.simpleQueryForLong() != 0;
         } finally {
-            c.close();
+            mSqlCache.releaseStatement(db, MATCHES_RULES_QUERY, statement);
         }
-        // No match found.
-        return false;
     }
 
     private boolean canCurrentUserBlockUsers() {
-        UserManager userManager = getContext().getSystemService(UserManager.class);
-        return userManager.isPrimaryUser();
+        Boolean canBlock = mCanCurrentUserBlockUsers;
+        if (canBlock == null) {
+            UserManager userManager = getContext().getSystemService(UserManager.class);
+            canBlock = userManager.isPrimaryUser();
+            mCanCurrentUserBlockUsers = canBlock;
+        }
+        return canBlock;
     }
 
     private void notifyEmergencyContact() {
@@ -458,16 +1505,16 @@ public class BlockedNumberProvider extends ContentProvider {
 
     private void endBlockSuppression() {
         // Nothing to do if blocks are not being suppressed.
-        if (getBlockSuppressionStatus().isSuppressed) {
+        if (getBlockSuppressionStatus(getSettings()).isSuppressed) {
             writeBlockSuppressionExpiryTimePref(0);
             writeEmergencyCallNotificationPref(false);
             notifyBlockSuppressionStateChange();
         }
     }
 
-    private SystemContract.BlockSuppressionStatus getBlockSuppressionStatus() {
-        SharedPreferences pref = getContext().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
-        long blockSuppressionExpiryTimeMillis = pref.getLong(BLOCK_SUPPRESSION_EXPIRY_TIME_PREF, 0);
+    private SystemContract.BlockSuppressionStatus getBlockSuppressionStatus(
+            BlockSettings settings) {
+        long blockSuppressionExpiryTimeMillis = settings.blockSuppressionExpiryTimeMillis;
         boolean isSuppressed = blockSuppressionExpiryTimeMillis == BLOCKING_DISABLED_FOREVER
                 || System.currentTimeMillis() < blockSuppressionExpiryTimeMillis;
         return new SystemContract.BlockSuppressionStatus(isSuppressed,
@@ -475,7 +1522,8 @@ public class BlockedNumberProvider extends ContentProvider {
     }
 
     private boolean shouldSystemBlockNumber(String phoneNumber, Bundle extras) {
-        if (getBlockSuppressionStatus().isSuppressed) {
+        final BlockSettings settings = getSettings();
+        if (getBlockSuppressionStatus(settings).isSuppressed) {
             return false;
         }
         if (isEmergencyNumber(phoneNumber)) {
@@ -489,21 +1537,16 @@ public class BlockedNumberProvider extends ContentProvider {
             int presentation = extras.getInt(BlockedNumberContract.EXTRA_CALL_PRESENTATION);
             switch (presentation) {
                 case TelecomManager.PRESENTATION_ALLOWED:
-                    isBlocked = getEnhancedBlockSetting(
-                            SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNREGISTERED)
-                                    && !contactExist;
+                    isBlocked = settings.blockUnregistered && !contactExist;
                     break;
                 case TelecomManager.PRESENTATION_RESTRICTED:
-                    isBlocked = getEnhancedBlockSetting(
-                            SystemContract.ENHANCED_SETTING_KEY_BLOCK_PRIVATE);
+                    isBlocked = settings.blockPrivate;
                     break;
                 case TelecomManager.PRESENTATION_PAYPHONE:
-                    isBlocked = getEnhancedBlockSetting(
-                            SystemContract.ENHANCED_SETTING_KEY_BLOCK_PAYPHONE);
+                    isBlocked = settings.blockPayphone;
                     break;
                 case TelecomManager.PRESENTATION_UNKNOWN:
-                    isBlocked = getEnhancedBlockSetting(
-                            SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNKNOWN);
+                    isBlocked = settings.blockUnknown;
                     break;
                 default:
                     break;
@@ -513,41 +1556,66 @@ public class BlockedNumberProvider extends ContentProvider {
     }
 
     private boolean shouldShowEmergencyCallNotification() {
+        final BlockSettings settings = getSettings();
         return isEnhancedCallBlockingEnabledByPlatform()
-                && isAnyEnhancedBlockingSettingEnabled()
-                && getBlockSuppressionStatus().isSuppressed
-                && getEnhancedBlockSetting(
-                        SystemContract.ENHANCED_SETTING_KEY_SHOW_EMERGENCY_CALL_NOTIFICATION);
+                && settings.isAnyEnhancedBlockingSettingEnabled()
+                && getBlockSuppressionStatus(settings).isSuppressed
+                && settings.showEmergencyCallNotification;
     }
 
     private boolean isEnhancedCallBlockingEnabledByPlatform() {
-        CarrierConfigManager configManager = (CarrierConfigManager) getContext().getSystemService(
-                Context.CARRIER_CONFIG_SERVICE);
-        PersistableBundle carrierConfig = configManager.getConfig();
-        if (carrierConfig == null) {
-            carrierConfig = configManager.getDefaultConfig();
+        return getCarrierConfigValues().enhancedCallBlockingEnabled;
+    }
+
+    private CarrierConfigValues getCarrierConfigValues() {
+        CarrierConfigValues values = mCarrierConfigValues;
+        if (values == null) {
+            CarrierConfigManager configManager =
+                    getContext().getSystemService(CarrierConfigManager.class);
+            PersistableBundle carrierConfig = configManager.getConfig();
+            if (carrierConfig == null) {
+                carrierConfig = CarrierConfigManager.getDefaultConfig();
+            }
+            values = new CarrierConfigValues(carrierConfig);
+            mCarrierConfigValues = values;
+        }
+        return values;
+    }
+
+    private BlockSettings getSettings() {
+        BlockSettings settings = mSettings;
+        if (settings == null) {
+            synchronized (mSettingsLock) {
+                settings = mSettings;
+                if (settings == null) {
+                    settings = BlockSettings.load(getPreferences());
+                    mSettings = settings;
+                }
+            }
         }
-        return carrierConfig.getBoolean(
-                CarrierConfigManager.KEY_SUPPORT_ENHANCED_CALL_BLOCKING_BOOL);
+        return settings;
     }
 
-    private boolean isAnyEnhancedBlockingSettingEnabled() {
-        return getEnhancedBlockSetting(SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNREGISTERED)
-                || getEnhancedBlockSetting(SystemContract.ENHANCED_SETTING_KEY_BLOCK_PRIVATE)
-                || getEnhancedBlockSetting(SystemContract.ENHANCED_SETTING_KEY_BLOCK_PAYPHONE)
-                || getEnhancedBlockSetting(SystemContract.ENHANCED_SETTING_KEY_BLOCK_UNKNOWN);
+    private SharedPreferences getPreferences() {
+        return getContext().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
     }
 
     private boolean getEnhancedBlockSetting(String key) {
-        SharedPreferences pref = getContext().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
-        return pref.getBoolean(key, false);
+        if (BlockSettings.isKnownSetting(key)) {
+            return getSettings().getEnhancedBlockSetting(key);
+        }
+        return getPreferences().getBoolean(key, false);
     }
 
     private void setEnhancedBlockSetting(String key, boolean value) {
-        SharedPreferences pref = getContext().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = pref.edit();
-        editor.putBoolean(key, value);
-        editor.apply();
+        synchronized (mSettingsLock) {
+            SharedPreferences pref = getPreferences();
+            SharedPreferences.Editor editor = pref.edit();
+            editor.putBoolean(key, value);
+            editor.apply();
+            // apply() updates the in-memory preferences synchronously.
+            mSettings = BlockSettings.load(pref);
+        }
     }
 
     private void writeEmergencyCallNotificationPref(boolean show) {
@@ -559,20 +1627,17 @@ public class BlockedNumberProvider extends ContentProvider {
     }
 
     private void writeBlockSuppressionExpiryTimePref(long expiryTimeMillis) {
-        SharedPreferences pref = getContext().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = pref.edit();
-        editor.putLong(BLOCK_SUPPRESSION_EXPIRY_TIME_PREF, expiryTimeMillis);
-        editor.apply();
+        synchronized (mSettingsLock) {
+            SharedPreferences pref = getPreferences();
+            SharedPreferences.Editor editor = pref.edit();
+            editor.putLong(BlockSettings.BLOCK_SUPPRESSION_EXPIRY_TIME_PREF, expiryTimeMillis);
+            editor.apply();
+            mSettings = BlockSettings.load(pref);
+        }
     }
 
     private long getBlockSuppressSecondsFromCarrierConfig() {
-        CarrierConfigManager carrierConfigManager =
-                getContext().getSystemService(CarrierConfigManager.class);
-        int carrierConfigValue = carrierConfigManager.getConfig().getInt
-                (CarrierConfigManager.KEY_DURATION_BLOCKING_DISABLED_AFTER_EMERGENCY_INT);
-        boolean isValidValue = carrierConfigValue <= MAX_BLOCKING_DISABLED_DURATION_SECONDS;
-        return isValidValue ? carrierConfigValue : CarrierConfigManager.getDefaultConfig().getInt(
-                CarrierConfigManager.KEY_DURATION_BLOCKING_DISABLED_AFTER_EMERGENCY_INT);
+        return getCarrierConfigValues().blockSuppressSeconds;
     }
 
     /**
@@ -580,32 +1645,51 @@ public class BlockedNumberProvider extends ContentProvider {
      * default SMS app or a carrier app.
      */
     private boolean checkForPrivilegedApplications() {
-        if (Binder.getCallingUid() == Process.ROOT_UID) {
+        final int callingUid = Binder.getCallingUid();
+        if (callingUid == Process.ROOT_UID) {
             return true;
         }
 
         final String callingPackage = getCallingPackage();
         if (TextUtils.isEmpty(callingPackage)) {
             Log.w(TAG, "callingPackage not accessible");
-        } else {
-            final TelecomManager telecom = getContext().getSystemService(TelecomManager.class);
+            return false;
+        }
 
-            if (callingPackage.equals(telecom.getDefaultDialerPackage())
-                    || callingPackage.equals(telecom.getSystemDialerPackage())) {
-                return true;
-            }
-            final AppOpsManager appOps = getContext().getSystemService(AppOpsManager.class);
-            if (appOps.noteOp(AppOpsManager.OP_WRITE_SMS,
-                    Binder.getCallingUid(), callingPackage) == AppOpsManager.MODE_ALLOWED) {
-                return true;
-            }
+        Integer privilege = mCallerPrivilegeCache.get(callingUid, callingPackage);
+        if (privilege == null) {
+            final int generation = mCallerPrivilegeCache.getGeneration();
+            privilege = getPrivilege(callingPackage);
+            mCallerPrivilegeCache.put(generation, callingUid, callingPackage, privilege);
+        }
+        if (privilege == CallerPrivilegeCache.PRIVILEGE_DIALER) {
+            return true;
+        }
+        // The op is noted on every access, as for uncached decisions, to keep app op accounting.
+        final AppOpsManager appOps = getContext().getSystemService(AppOpsManager.class);
+        if (appOps.noteOp(AppOpsManager.OP_WRITE_SMS,
+                callingUid, callingPackage) == AppOpsManager.MODE_ALLOWED) {
+            return true;
+        }
+        return privilege == CallerPrivilegeCache.PRIVILEGE_CARRIER;
+    }
 
-            final TelephonyManager telephonyManager =
-                    getContext().getSystemService(TelephonyManager.class);
-            return telephonyManager.checkCarrierPrivilegesForPackage(callingPackage) ==
-                    TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+    /**
+     * @return the {@link CallerPrivilegeCache} privilege of {@code callingPackage}.
+     */
+    private int getPrivilege(String callingPackage) {
+        final TelecomManager telecom = getContext().getSystemService(TelecomManager.class);
+
+        if (callingPackage.equals(telecom.getDefaultDialerPackage())
+                || callingPackage.equals(telecom.getSystemDialerPackage())) {
+            return CallerPrivilegeCache.PRIVILEGE_DIALER;
         }
-        return false;
+
+        final TelephonyManager telephonyManager =
+                getContext().getSystemService(TelephonyManager.class);
+        return telephonyManager.checkCarrierPrivilegesForPackage(callingPackage)
+                == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
+                ? CallerPrivilegeCache.PRIVILEGE_CARRIER : CallerPrivilegeCache.PRIVILEGE_NONE;
     }
 
     private void notifyBlockSuppressionStateChange() {
@@ -674,4 +1758,36 @@ public class BlockedNumberProvider extends ContentProvider {
     private void throwCurrentUserNotPermittedSecurityException() {
         throw new SecurityException("The current user cannot perform this operation");
     }
+
+    /**
+     * The carrier config values used by the provider, read from a single {@link PersistableBundle}
+     * and kept until the carrier config or SIM state changes.
+     */
+    private static final class CarrierConfigValues {
+        final boolean enhancedCallBlockingEnabled;
+        final int blockSuppressSeconds;
+
+        CarrierConfigValues(PersistableBundle carrierConfig) {
+            enhancedCallBlockingEnabled = carrierConfig.getBoolean(
+                    CarrierConfigManager.KEY_SUPPORT_ENHANCED_CALL_BLOCKING_BOOL);
+            int seconds = carrierConfig.getInt(
+                    CarrierConfigManager.KEY_DURATION_BLOCKING_DISABLED_AFTER_EMERGENCY_INT);
+            if (seconds > MAX_BLOCKING_DISABLED_DURATION_SECONDS) {
+                seconds = CarrierConfigManager.getDefaultConfig().getInt(
+                        CarrierConfigManager.KEY_DURATION_BLOCKING_DISABLED_AFTER_EMERGENCY_INT);
+            }
+            blockSuppressSeconds = seconds;
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mIndex.dump(writer);
+        mRules.dump(writer);
+        mSqlCache.dump(writer);
+        Utils.dumpE164Cache(writer);
+        mCallerPrivilegeCache.dump(writer);
+        mDataChangeDispatcher.dump(writer);
+        writer.println("Current country: " + Utils.getCachedCountryIso());
+    }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.android.providers.blockednumber.BlockedNumberDatabaseHelper.Tables;
+import com.android.providers.blockednumber.BlockedNumberProvider.BlockingRules;
+
+import java.io.PrintWriter;
+
+/**
+ * Evaluates the rules of the {@link Tables#RULES} table against E164 numbers.
+ *
+ * <p>Prefix rules are kept in a {@link DigitTrie} and pattern rules are compiled together into a
+ * {@link PatternAutomaton}, so a check takes time linear in the length of the number regardless
+ * of the number of rules.
+ *
+ * <p>Like {@link BlockedNumberIndex}, the matcher is loaded from the database on first use and
+ * must be updated within the transactions that write the rules table.
+ */
+class BlockingRuleMatcher {
+    private static final String[] LOAD_PROJECTION = new String[] {
+            BlockingRules.COLUMN_TYPE,
+            BlockingRules.COLUMN_RULE,
+    };
+
+    /** Longest E164 number, not counting the '+'. */
+    private static final int MAX_E164_DIGITS = 15;
+
+    private final DigitTrie mPrefixes = new DigitTrie();
+    private final PatternAutomaton mPatterns = new PatternAutomaton();
+    private boolean mLoaded;
+    private long mMatchCount;
+
+    /**
+     * Validates {@code rule} for a rule of type {@code type} and puts it in canonical form, i.e.
+     * '+' followed by the digits of the number, without any formatting.  Pattern rules may also
+     * contain '?', which matches any digit, and end with '*', which matches any remaining digits.
+     *
+     * @throws IllegalArgumentException if the rule is not valid.
+     */
+    public static @NonNull String normalizeRule(int type, @Nullable String rule) {
+        if (TextUtils.isEmpty(rule)) {
+            throw new IllegalArgumentException("Missing a required column "
+                    + BlockingRules.COLUMN_RULE);
+        }
+        switch (type) {
+            case BlockingRules.TYPE_PREFIX:
+                return normalize(rule, false);
+            case BlockingRules.TYPE_PATTERN:
+                return normalize(rule, true);
+            default:
+                throw new IllegalArgumentException("Unsupported rule type " + type);
+        }
+    }
+
+    private static String normalize(String rule, boolean isPattern) {
+        final StringBuilder sb = new StringBuilder(rule.length());
+        for (int i = 0; i < rule.length(); i++) {
+            final char c = rule.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            } else if (c == '+' && i == 0) {
+                sb.append(c);
+            } else if (isPattern && (c == '?' || c == '*')) {
+                sb.append(c);
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')') {
+                throw new IllegalArgumentException("Invalid character in rule " + rule);
+            }
+        }
+        final int symbols = sb.length() > 0 && sb.charAt(sb.length() - 1) == '*'
+                ? sb.length() - 2 : sb.length() - 1;
+        if (symbols < 1 || sb.charAt(0) != '+' || symbols > MAX_E164_DIGITS
+                || (isPattern && !PatternAutomaton.isValidPattern(sb.substring(1)))) {
+            throw new IllegalArgumentException("Rule must be '+' followed by 1 to "
+                    + MAX_E164_DIGITS + (isPattern ? " digits or '?', optionally followed by '*': "
+                    : " digits: ") + rule);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Loads the rules from {@code db} unless they're already loaded.
+     */
+    public void ensureLoaded(@NonNull SQLiteDatabase db) {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+        db.beginTransaction();
+        try {
+            synchronized (this) {
+                if (mLoaded) {
+                    return;
+                }
+                clearLocked();
+                try (Cursor c = db.query(Tables.RULES, LOAD_PROJECTION,
+                        null, null, null, null, null)) {
+                    while (c.moveToNext()) {
+                        addLocked(c.getInt(0), c.getString(1));
+                    }
+                }
+                mLoaded = true;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public synchronized void invalidate() {
+        mLoaded = false;
+        clearLocked();
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Records an inserted rule, in canonical form.  No-op if the matcher is not loaded yet.
+     */
+    public synchronized void add(int type, @NonNull String rule) {
+        if (mLoaded) {
+            addLocked(type, rule);
+        }
+    }
+
+    /**
+     * Records a deleted rule.  No-op if the matcher is not loaded yet.
+     */
+    public synchronized void remove(int type, @NonNull String rule) {
+        if (!mLoaded) {
+            return;
+        }
+        switch (type) {
+            case BlockingRules.TYPE_PREFIX:
+                mPrefixes.remove(rule.substring(1));
+                break;
+            case BlockingRules.TYPE_PATTERN:
+                mPatterns.remove(rule.substring(1));
+                break;
+        }
+    }
+
+    /**
+     * Checks whether the rules are loaded and matches them under the same lock, so that a
+     * concurrent {@link #invalidate} can't make a matching number look unmatched.
+     *
+     * @return whether {@code e164Number} matches any rule, or {@code null} if the rules are not
+     * loaded.
+     */
+    public synchronized @Nullable Boolean matches(@Nullable String e164Number) {
+        if (!mLoaded) {
+            return null;
+        }
+        if (TextUtils.isEmpty(e164Number) || e164Number.charAt(0) != '+') {
+            return false;
+        }
+        final boolean matches = mPrefixes.matchesPrefixOf(e164Number, 1)
+                || mPatterns.matches(e164Number, 1);
+        if (matches) {
+            mMatchCount++;
+        }
+        return matches;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Rules: loaded=" + mLoaded + " matches=" + mMatchCount);
+        pw.println("  prefixes=" + mPrefixes.size() + " nodes=" + mPrefixes.getNodeCount()
+                + " bytes=" + mPrefixes.getMemorySizeBytes());
+        pw.println("  patterns=" + mPatterns.size() + " nodes=" + mPatterns.getNodeCount()
+                + " states=" + mPatterns.getStateCount()
+                + " stateResets=" + mPatterns.getStateResetCount());
+    }
+
+    private void addLocked(int type, String rule) {
+        switch (type) {
+            case BlockingRules.TYPE_PREFIX:
+                mPrefixes.add(rule.substring(1));
+                break;
+            case BlockingRules.TYPE_PATTERN:
+                mPatterns.add(rule.substring(1));
+                break;
+        }
+    }
+
+    private void clearLocked() {
+        mPrefixes.clear();
+        mPatterns.clear();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+
+/**
+ * A fixed-size Bloom filter over strings and longs.  {@link #mightContain} never returns
+ * {@code false} for a value that was {@link #put}; it may return {@code true} for other values
+ * with roughly the probability given by {@link #getExpectedFalsePositiveRate}.
+ *
+ * <p>Not thread safe.
+ */
+class BloomFilter {
+    private static final double LN2 = Math.log(2);
+
+    private final long[] mBits;
+    private final int mNumBits;
+    private final int mNumHashes;
+    private final int mCapacity;
+    private int mSize;
+
+    /**
+     * Creates a filter sized to hold {@code capacity} entries with a false positive rate of
+     * {@code falsePositiveRate}.
+     */
+    public BloomFilter(int capacity, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid false positive rate " + falsePositiveRate);
+        }
+        mCapacity = Math.max(capacity, 1);
+        final long numBits = (long) Math.ceil(
+                -mCapacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+        mNumBits = (int) Math.min(Math.max(numBits, Long.SIZE), Integer.MAX_VALUE - Long.SIZE);
+        mBits = new long[(mNumBits + Long.SIZE - 1) / Long.SIZE];
+        mNumHashes = Math.max(1, (int) Math.round((double) mNumBits / mCapacity * LN2));
+    }
+
+    public void put(@NonNull String value) {
+        final int h1 = value.hashCode();
+        final int h2 = secondaryHash(value);
+        for (int i = 0; i < mNumHashes; i++) {
+            final int bit = bitIndex(h1 + i * h2);
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+        mSize++;
+    }
+
+    public void put(long value) {
+        final int h1 = NumberKeySet.hash(value);
+        final int h2 = secondaryHash(value);
+        for (int i = 0; i < mNumHashes; i++) {
+            final int bit = bitIndex(h1 + i * h2);
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+        mSize++;
+    }
+
+    public boolean mightContain(@NonNull String value) {
+        return mightContain(value.hashCode(), secondaryHash(value));
+    }
+
+    public boolean mightContain(long value) {
+        return mightContain(NumberKeySet.hash(value), secondaryHash(value));
+    }
+
+    private boolean mightContain(int h1, int h2) {
+        for (int i = 0; i < mNumHashes; i++) {
+            final int bit = bitIndex(h1 + i * h2);
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of entries this filter was sized for. */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** @return the number of {@link #put} calls so far. */
+    public int size() {
+        return mSize;
+    }
+
+    public int getNumHashes() {
+        return mNumHashes;
+    }
+
+    /** @return the size of the bit array in bytes. */
+    public long getMemorySizeBytes() {
+        return (long) mBits.length * (Long.SIZE / Byte.SIZE);
+    }
+
+    /**
+     * @return the expected false positive rate given the current number of entries.
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) mNumHashes * mSize / mNumBits), mNumHashes);
+    }
+
+    private int bitIndex(int hash) {
+        return (hash & Integer.MAX_VALUE) % mNumBits;
+    }
+
+    /** FNV-1a, which is independent enough from {@link String#hashCode} for double hashing. */
+    private static int secondaryHash(String value) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x01000193;
+        }
+        // An even step could cycle through only part of the bits.
+        return hash | 1;
+    }
+
+    /** Fibonacci hashing, which is independent enough from {@link NumberKeySet#hash}. */
+    private static int secondaryHash(long value) {
+        long hash = value * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 29;
+        return (int) (hash >>> 32) | 1;
+    }
+}
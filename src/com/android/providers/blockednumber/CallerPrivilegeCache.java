@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Remembers which {@code PRIVILEGE_} a (uid, package) caller has: the default or system dialer,
+ * a carrier app, or neither.  Being the default SMS app is not cached, since the WRITE_SMS app
+ * op has to be noted on each access anyway.
+ *
+ * <p>Any change that may affect these decisions must call {@link #invalidate}.  To avoid caching
+ * a decision computed before such a change, callers read {@link #getGeneration} before computing
+ * a decision and pass it to {@link #put}.
+ *
+ * <p>Entries are keyed by uid, then by package, so that lookups don't allocate.
+ */
+class CallerPrivilegeCache {
+    /** There are only a handful of privileged callers; this only bounds misbehaving ones. */
+    private static final int MAX_ENTRIES = 64;
+
+    public static final int PRIVILEGE_NONE = 0;
+    public static final int PRIVILEGE_DIALER = 1;
+    public static final int PRIVILEGE_CARRIER = 2;
+
+    private final SparseArray<ArrayMap<String, Integer>> mEntries = new SparseArray<>();
+    private int mEntryCount;
+    private int mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private int mInvalidationCount;
+
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return the cached {@code PRIVILEGE_} of the caller, or {@code null} if there's none.
+     */
+    public synchronized @Nullable Integer get(int uid, @NonNull String packageName) {
+        final ArrayMap<String, Integer> packages = mEntries.get(uid);
+        final Integer privilege = packages == null ? null : packages.get(packageName);
+        if (privilege == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return privilege;
+    }
+
+    public synchronized void put(int generation, int uid, @NonNull String packageName,
+            int privilege) {
+        if (generation != mGeneration) {
+            return;
+        }
+        if (mEntryCount >= MAX_ENTRIES) {
+            clearLocked();
+        }
+        ArrayMap<String, Integer> packages = mEntries.get(uid);
+        if (packages == null) {
+            packages = new ArrayMap<>(1);
+            mEntries.put(uid, packages);
+        }
+        if (packages.put(packageName, privilege) == null) {
+            mEntryCount++;
+        }
+    }
+
+    public synchronized void invalidate() {
+        mGeneration++;
+        mInvalidationCount++;
+        clearLocked();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Caller privilege cache: entries=" + mEntryCount + " hits=" + mHitCount
+                + " misses=" + mMissCount + " invalidations=" + mInvalidationCount);
+    }
+
+    private void clearLocked() {
+        mEntries.clear();
+        mEntryCount = 0;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import java.io.Closeable;
+
+/**
+ * Reads the rows of a table in {@code _id} order, {@code chunkSize} at a time, each query
+ * starting after the last ID of the previous one.  Memory use doesn't depend on the size of the
+ * table, and no read transaction stays open across chunks, so writers can get in between.
+ *
+ * <p>Rows are read with {@link #moveToNext} and their columns from {@link #getCursor}, whose
+ * first column is always {@code _id}.  Not thread safe.
+ */
+class ChunkedRowReader implements Closeable {
+    private final SQLiteDatabase mDb;
+    private final String mTable;
+    private final String[] mColumns;
+    private final String mSelection;
+    private final int mChunkSize;
+    private final String mLimit;
+
+    private Cursor mCursor;
+    private int mChunkRows;
+    private long mLastId = -1;
+    private int mRowCount;
+    private boolean mDone;
+
+    /**
+     * @param columns the columns to read, the first of which must be {@code _id}.
+     * @param selection an optional filter, which may not have arguments.
+     */
+    public ChunkedRowReader(@NonNull SQLiteDatabase db, @NonNull String table,
+            @NonNull String[] columns, @Nullable String selection, int chunkSize) {
+        if (!BaseColumns._ID.equals(columns[0])) {
+            throw new IllegalArgumentException("The first column must be " + BaseColumns._ID);
+        }
+        mDb = db;
+        mTable = table;
+        mColumns = columns;
+        mSelection = selection == null ? BaseColumns._ID + ">?"
+                : BaseColumns._ID + ">? AND (" + selection + ")";
+        mChunkSize = chunkSize;
+        mLimit = Integer.toString(chunkSize);
+    }
+
+    /**
+     * Moves to the next row, querying the next chunk if needed.
+     *
+     * @return {@code false} after the last row.
+     */
+    public boolean moveToNext() {
+        while (!mDone) {
+            if (mCursor != null && mCursor.moveToNext()) {
+                mLastId = mCursor.getLong(0);
+                mChunkRows++;
+                mRowCount++;
+                return true;
+            }
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+                if (mChunkRows < mChunkSize) {
+                    // A short chunk is the last one.
+                    mDone = true;
+                    break;
+                }
+            }
+            mChunkRows = 0;
+            mCursor = mDb.query(mTable, mColumns, mSelection,
+                    new String[] {Long.toString(mLastId)}, null, null, BaseColumns._ID, mLimit);
+        }
+        return false;
+    }
+
+    /** @return the cursor positioned on the current row. */
+    public @NonNull Cursor getCursor() {
+        return mCursor;
+    }
+
+    /** @return the number of rows read so far. */
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    @Override
+    public void close() {
+        mDone = true;
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.net.Uri;
+import android.os.Handler;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Runs the side effects of data changes (observer notifications, backup requests) off the write
+ * path.  Changes reported within {@link #mWindowMillis} of each other are coalesced into a single
+ * {@link Callback#onDataChanged} call, which always runs after the last reported change.  The
+ * URIs of rows are {@link #collapseToParents collapsed} into the URI of their table when several
+ * rows of it changed, so that observers of the table are notified once.
+ */
+class DataChangeDispatcher {
+    public interface Callback {
+        /**
+         * Called on the dispatcher's handler with the distinct URIs that changed.
+         */
+        void onDataChanged(@NonNull ArraySet<Uri> changedUris);
+    }
+
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final Callback mCallback;
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchPendingChanges();
+        }
+    };
+
+    // All guarded by this.
+    private ArraySet<Uri> mPendingUris = new ArraySet<>();
+    private boolean mScheduled;
+    private long mReportedCount;
+    private long mCoalescedCount;
+    private long mDeliveredCount;
+
+    public DataChangeDispatcher(@NonNull Handler handler, long windowMillis,
+            @NonNull Callback callback) {
+        mHandler = handler;
+        mWindowMillis = windowMillis;
+        mCallback = callback;
+    }
+
+    /**
+     * Reports a change of {@code uri}; the callback runs at most {@link #mWindowMillis} later.
+     */
+    public void onDataChanged(@NonNull Uri uri) {
+        synchronized (this) {
+            mReportedCount++;
+            mPendingUris.add(uri);
+            if (mScheduled) {
+                mCoalescedCount++;
+                return;
+            }
+            mScheduled = true;
+        }
+        mHandler.postDelayed(mDispatchRunnable, mWindowMillis);
+    }
+
+    /**
+     * Delivers pending changes, if any, on the calling thread.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mDispatchRunnable);
+        dispatchPendingChanges();
+    }
+
+    private void dispatchPendingChanges() {
+        final ArraySet<Uri> changedUris;
+        synchronized (this) {
+            if (mPendingUris.isEmpty()) {
+                mScheduled = false;
+                return;
+            }
+            changedUris = mPendingUris;
+            mPendingUris = new ArraySet<>();
+            mScheduled = false;
+            mDeliveredCount++;
+        }
+        mCallback.onDataChanged(collapseToParents(changedUris));
+    }
+
+    /**
+     * @return {@code uris}, where the URIs of rows, i.e. URIs ending with a numeric ID, are
+     * replaced by the URI of their table if another row of the same table is in {@code uris}, or
+     * the table itself is.
+     */
+    public static @NonNull ArraySet<Uri> collapseToParents(@NonNull ArraySet<Uri> uris) {
+        final ArrayMap<Uri, Integer> childCounts = new ArrayMap<>();
+        for (int i = 0; i < uris.size(); i++) {
+            final Uri parent = getParent(uris.valueAt(i));
+            if (parent != null) {
+                final Integer count = childCounts.get(parent);
+                childCounts.put(parent, count == null ? 1 : count + 1);
+            }
+        }
+        if (childCounts.isEmpty()) {
+            return uris;
+        }
+        final ArraySet<Uri> collapsed = new ArraySet<>(uris.size());
+        for (int i = 0; i < uris.size(); i++) {
+            final Uri uri = uris.valueAt(i);
+            final Uri parent = getParent(uri);
+            if (parent != null && (childCounts.get(parent) > 1 || uris.contains(parent))) {
+                collapsed.add(parent);
+            } else {
+                collapsed.add(uri);
+            }
+        }
+        return collapsed;
+    }
+
+    private static Uri getParent(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty() || !TextUtils.isDigitsOnly(segments.get(segments.size() - 1))) {
+            return null;
+        }
+        return uri.buildUpon()
+                .path("/" + TextUtils.join("/", segments.subList(0, segments.size() - 1)))
+                .build();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Data changes: reported=" + mReportedCount + " delivered=" + mDeliveredCount
+                + " coalesced=" + mCoalescedCount + " pending=" + mPendingUris.size());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * A trie over decimal digit strings, answering whether any of its strings is a prefix of a given
+ * number in time linear in the length of the number.
+ *
+ * <p>Nodes are stored in flat arrays: the children of node {@code n} are at
+ * {@code mChildren[n * 10 + digit]}, with 0 meaning "no child" since the root (node 0) is never
+ * a child.  Removed strings leave their nodes behind; {@link #clear} releases them.
+ *
+ * <p>Not thread safe.
+ */
+class DigitTrie {
+    private static final int RADIX = 10;
+    private static final int INITIAL_NODES = 16;
+
+    private int[] mChildren;
+    private boolean[] mTerminal;
+    private int mNodeCount;
+    private int mSize;
+
+    public DigitTrie() {
+        clear();
+    }
+
+    public void clear() {
+        mChildren = new int[INITIAL_NODES * RADIX];
+        mTerminal = new boolean[INITIAL_NODES];
+        mNodeCount = 1;
+        mSize = 0;
+    }
+
+    /**
+     * Adds {@code digits}, which must only contain ASCII digits.
+     *
+     * @return {@code false} if it was already present.
+     */
+    public boolean add(@NonNull String digits) {
+        int node = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            final int slot = node * RADIX + digitAt(digits, i);
+            if (mChildren[slot] == 0) {
+                // newNode() may reallocate mChildren, so don't evaluate it on the left side.
+                final int child = newNode();
+                mChildren[slot] = child;
+            }
+            node = mChildren[slot];
+        }
+        if (mTerminal[node]) {
+            return false;
+        }
+        mTerminal[node] = true;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Removes {@code digits}.
+     *
+     * @return {@code false} if it was not present.
+     */
+    public boolean remove(@NonNull String digits) {
+        final int node = find(digits);
+        if (node < 0 || !mTerminal[node]) {
+            return false;
+        }
+        mTerminal[node] = false;
+        mSize--;
+        return true;
+    }
+
+    /**
+     * @return whether one of the strings in the trie is a prefix of the digits of {@code number}
+     * starting at {@code start}.  Walking stops at the first non-digit character.
+     */
+    public boolean matchesPrefixOf(@NonNull String number, int start) {
+        if (mSize == 0) {
+            return false;
+        }
+        int node = 0;
+        for (int i = start; i < number.length(); i++) {
+            if (mTerminal[node]) {
+                return true;
+            }
+            final char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            node = mChildren[node * RADIX + (c - '0')];
+            if (node == 0) {
+                return false;
+            }
+        }
+        return mTerminal[node];
+    }
+
+    /** @return the number of strings in the trie. */
+    public int size() {
+        return mSize;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public long getMemorySizeBytes() {
+        return (long) mChildren.length * (Integer.SIZE / Byte.SIZE) + mTerminal.length;
+    }
+
+    private int find(String digits) {
+        int node = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            node = mChildren[node * RADIX + digitAt(digits, i)];
+            if (node == 0) {
+                return -1;
+            }
+        }
+        return node;
+    }
+
+    private int newNode() {
+        if (mNodeCount == mTerminal.length) {
+            final int capacity = mTerminal.length * 2;
+            mChildren = Arrays.copyOf(mChildren, capacity * RADIX);
+            mTerminal = Arrays.copyOf(mTerminal, capacity);
+        }
+        return mNodeCount++;
+    }
+
+    private static int digitAt(String digits, int index) {
+        final int digit = digits.charAt(index) - '0';
+        if (digit < 0 || digit >= RADIX) {
+            throw new IllegalArgumentException("Not a digit string: " + digits);
+        }
+        return digit;
+    }
+}
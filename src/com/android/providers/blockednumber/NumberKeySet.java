@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+
+/**
+ * A reference counted set of phone numbers which stores numbers made of an optional leading '+'
+ * and up to {@link #MAX_DIGITS} digits, such as E164 numbers, as 64-bit keys rather than
+ * strings.
+ *
+ * <p>Keys live in an open-addressed hash table with linear probing, so probes don't allocate and
+ * only touch a couple of adjacent array slots.  Other strings, e.g. email addresses, are kept in
+ * a regular {@link HashMap}.
+ *
+ * <p>Not thread safe.
+ */
+class NumberKeySet {
+    /** Longest digit string that can be {@link #encode encoded}. */
+    public static final int MAX_DIGITS = 15;
+
+    /** Returned by {@link #encode} for strings that can't be encoded.  Never a valid key. */
+    public static final long NO_KEY = 0;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Rough heap cost of a {@link HashMap} entry holding a short string and a boxed count. */
+    private static final int SIDE_TABLE_ENTRY_BYTES = 80;
+
+    // mKeys[i] == NO_KEY marks an empty slot; mCounts[i] is the reference count of mKeys[i].
+    private long[] mKeys;
+    private int[] mCounts;
+    private int mKeyCount;
+
+    private final HashMap<String, Integer> mOtherNumbers = new HashMap<>();
+
+    public NumberKeySet() {
+        clear();
+    }
+
+    private NumberKeySet(NumberKeySet other) {
+        mKeys = other.mKeys.clone();
+        mCounts = other.mCounts.clone();
+        mKeyCount = other.mKeyCount;
+        mOtherNumbers.putAll(other.mOtherNumbers);
+    }
+
+    /** @return an independent copy of this set. */
+    public @NonNull NumberKeySet copy() {
+        return new NumberKeySet(this);
+    }
+
+    /**
+     * Encodes {@code number} as {@code (value << 5) | (digitCount << 1) | hasPlus}, which keeps
+     * leading zeros significant.
+     *
+     * @return the key, or {@link #NO_KEY} if {@code number} is not an optional '+' followed by 1
+     * to {@link #MAX_DIGITS} digits.
+     */
+    public static long encode(@NonNull String number) {
+        final int length = number.length();
+        final int start = length > 0 && number.charAt(0) == '+' ? 1 : 0;
+        final int digits = length - start;
+        if (digits < 1 || digits > MAX_DIGITS) {
+            return NO_KEY;
+        }
+        long value = 0;
+        for (int i = start; i < length; i++) {
+            final int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return NO_KEY;
+            }
+            value = value * 10 + digit;
+        }
+        return (value << 5) | (digits << 1) | start;
+    }
+
+    public void clear() {
+        mKeys = new long[INITIAL_CAPACITY];
+        mCounts = new int[INITIAL_CAPACITY];
+        mKeyCount = 0;
+        mOtherNumbers.clear();
+    }
+
+    /**
+     * Adds a reference to {@code number}.
+     *
+     * @return {@code true} if it was not present before.
+     */
+    public boolean add(@NonNull String number) {
+        final long key = encode(number);
+        if (key == NO_KEY) {
+            final Integer count = mOtherNumbers.get(number);
+            mOtherNumbers.put(number, count == null ? 1 : count + 1);
+            return count == null;
+        }
+        int slot = slotOf(key);
+        if (mKeys[slot] == key) {
+            mCounts[slot]++;
+            return false;
+        }
+        if ((mKeyCount + 1) * 2 > mKeys.length) {
+            resize(mKeys.length * 2);
+            slot = slotOf(key);
+        }
+        mKeys[slot] = key;
+        mCounts[slot] = 1;
+        mKeyCount++;
+        return true;
+    }
+
+    /**
+     * Drops a reference to {@code number}.
+     *
+     * @return {@code true} if that was the last reference.
+     */
+    public boolean remove(@NonNull String number) {
+        final long key = encode(number);
+        if (key == NO_KEY) {
+            final Integer count = mOtherNumbers.get(number);
+            if (count == null) {
+                return false;
+            }
+            if (count <= 1) {
+                mOtherNumbers.remove(number);
+                return true;
+            }
+            mOtherNumbers.put(number, count - 1);
+            return false;
+        }
+        final int slot = slotOf(key);
+        if (mKeys[slot] != key) {
+            return false;
+        }
+        if (--mCounts[slot] > 0) {
+            return false;
+        }
+        deleteSlot(slot);
+        mKeyCount--;
+        return true;
+    }
+
+    public boolean contains(@NonNull String number) {
+        return contains(number, encode(number));
+    }
+
+    /**
+     * Same as {@link #contains(String)}, for callers which already {@link #encode encoded}
+     * {@code number} as {@code key}.
+     */
+    public boolean contains(@NonNull String number, long key) {
+        return key == NO_KEY ? mOtherNumbers.containsKey(number) : mKeys[slotOf(key)] == key;
+    }
+
+    /** @return the number of distinct numbers. */
+    public int size() {
+        return mKeyCount + mOtherNumbers.size();
+    }
+
+    /** @return the number of slots of the hash table. */
+    @VisibleForTesting
+    int getCapacity() {
+        return mKeys.length;
+    }
+
+    /** @return the number of distinct numbers that could not be encoded as keys. */
+    public int getOtherNumberCount() {
+        return mOtherNumbers.size();
+    }
+
+    /**
+     * @return the memory used by the hash table, plus an estimate for the numbers that could not
+     * be encoded.
+     */
+    public long getMemorySizeBytes() {
+        return (long) mKeys.length * (Long.SIZE / Byte.SIZE)
+                + (long) mCounts.length * (Integer.SIZE / Byte.SIZE)
+                + (long) mOtherNumbers.size() * SIDE_TABLE_ENTRY_BYTES;
+    }
+
+    /**
+     * Adds all the numbers to {@code filter}: keys with {@link BloomFilter#put(long)}, other
+     * numbers with {@link BloomFilter#put(String)}.
+     */
+    public void putAll(@NonNull BloomFilter filter) {
+        for (long key : mKeys) {
+            if (key != NO_KEY) {
+                filter.put(key);
+            }
+        }
+        for (String number : mOtherNumbers.keySet()) {
+            filter.put(number);
+        }
+    }
+
+    /**
+     * @return the slot holding {@code key}, or the empty slot where it would be inserted.
+     */
+    private int slotOf(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != NO_KEY && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties {@code slot}, then moves back the entries that follow it in the same probe run so
+     * that lookups never stop early at the hole.
+     */
+    private void deleteSlot(int slot) {
+        final int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mKeys[next] != NO_KEY) {
+            final int home = hash(mKeys[next]) & mask;
+            // Move the entry if its home slot is not in (hole, next], cyclically.
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mCounts[hole] = mCounts[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mKeys[hole] = NO_KEY;
+        mCounts[hole] = 0;
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = mKeys;
+        final int[] oldCounts = mCounts;
+        mKeys = new long[capacity];
+        mCounts = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != NO_KEY) {
+                final int slot = slotOf(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mCounts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /** The finalizer of MurmurHash3, so that consecutive numbers spread over the table. */
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
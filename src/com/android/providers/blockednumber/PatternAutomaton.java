@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Matches digit strings against a set of patterns made of digits, '?' (any single digit) and an
+ * optional trailing '*' (any sequence of digits, including none).
+ *
+ * <p>Patterns are stored in a trie which acts as a nondeterministic automaton, '?' being an extra
+ * edge out of each node.  The trie is determinized lazily: each deterministic state is the set
+ * of trie nodes reachable with the input consumed so far, and its transitions are computed the
+ * first time they're taken and then remembered.  A match therefore runs in time linear in the
+ * length of the input, however many patterns there are.  Adding or removing a pattern only
+ * updates the trie and drops the remembered states, which get recomputed as they're visited.
+ *
+ * <p>Not thread safe.
+ */
+class PatternAutomaton {
+    private static final int DIGITS = 10;
+    private static final int WILDCARD = DIGITS;
+    private static final int SYMBOLS = DIGITS + 1;
+    private static final int INITIAL_NODES = 16;
+
+    /** Bounds the memory used by remembered states; they're dropped when it's exceeded. */
+    private static final int MAX_STATES = 4096;
+
+    private static final int UNKNOWN = -1;
+    private static final int[] EMPTY = new int[0];
+
+    // The trie.  Node 0 is the root, and 0 in mChildren means "no child".
+    private int[] mChildren;
+    private boolean[] mAcceptsEnd;
+    private boolean[] mAcceptsAnySuffix;
+    private int mNodeCount;
+    private int mSize;
+
+    // The deterministic states.  State 0 is {root}.
+    private final HashMap<StateKey, Integer> mStateIds = new HashMap<>();
+    private int[][] mStateNodes;
+    private int[] mTransitions;
+    private boolean[] mStateAcceptsEnd;
+    private boolean[] mStateAcceptsAnySuffix;
+    private int mStateCount;
+    private int mStateResetCount;
+
+    public PatternAutomaton() {
+        clear();
+    }
+
+    public void clear() {
+        mChildren = new int[INITIAL_NODES * SYMBOLS];
+        mAcceptsEnd = new boolean[INITIAL_NODES];
+        mAcceptsAnySuffix = new boolean[INITIAL_NODES];
+        mNodeCount = 1;
+        mSize = 0;
+        resetStates();
+    }
+
+    /**
+     * @return whether {@code pattern} is made of digits and '?', optionally followed by '*'.
+     */
+    public static boolean isValidPattern(@NonNull String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (!((c >= '0' && c <= '9') || c == '?'
+                    || (c == '*' && i == pattern.length() - 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a {@link #isValidPattern valid} pattern.
+     *
+     * @return {@code false} if it was already present.
+     */
+    public boolean add(@NonNull String pattern) {
+        final boolean anySuffix = pattern.endsWith("*");
+        final int length = anySuffix ? pattern.length() - 1 : pattern.length();
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            final int slot = node * SYMBOLS + symbolAt(pattern, i);
+            if (mChildren[slot] == 0) {
+                // newNode() may reallocate mChildren, so don't evaluate it on the left side.
+                final int child = newNode();
+                mChildren[slot] = child;
+            }
+            node = mChildren[slot];
+        }
+        final boolean[] flags = anySuffix ? mAcceptsAnySuffix : mAcceptsEnd;
+        if (flags[node]) {
+            return false;
+        }
+        flags[node] = true;
+        mSize++;
+        resetStates();
+        return true;
+    }
+
+    /**
+     * Removes {@code pattern}.
+     *
+     * @return {@code false} if it was not present.
+     */
+    public boolean remove(@NonNull String pattern) {
+        final boolean anySuffix = pattern.endsWith("*");
+        final int length = anySuffix ? pattern.length() - 1 : pattern.length();
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            node = mChildren[node * SYMBOLS + symbolAt(pattern, i)];
+            if (node == 0) {
+                return false;
+            }
+        }
+        final boolean[] flags = anySuffix ? mAcceptsAnySuffix : mAcceptsEnd;
+        if (!flags[node]) {
+            return false;
+        }
+        flags[node] = false;
+        mSize--;
+        resetStates();
+        return true;
+    }
+
+    /**
+     * @return whether the digits of {@code number} starting at {@code start} match a pattern.
+     */
+    public boolean matches(@NonNull String number, int start) {
+        if (mSize == 0) {
+            return false;
+        }
+        // Input is at most a few dozen characters, so we add at most that many states here.
+        if (mStateCount + number.length() > MAX_STATES) {
+            resetStates();
+            mStateResetCount++;
+        }
+        int state = 0;
+        for (int i = start; i < number.length(); i++) {
+            if (mStateAcceptsAnySuffix[state]) {
+                return true;
+            }
+            final int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit >= DIGITS) {
+                return false;
+            }
+            int next = mTransitions[state * DIGITS + digit];
+            if (next == UNKNOWN) {
+                next = computeTransition(state, digit);
+            }
+            if (mStateNodes[next].length == 0) {
+                return false;
+            }
+            state = next;
+        }
+        return mStateAcceptsEnd[state] || mStateAcceptsAnySuffix[state];
+    }
+
+    /** @return the number of patterns. */
+    public int size() {
+        return mSize;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public int getStateCount() {
+        return mStateCount;
+    }
+
+    public int getStateResetCount() {
+        return mStateResetCount;
+    }
+
+    private int computeTransition(int state, int digit) {
+        final int[] nodes = mStateNodes[state];
+        int[] next = new int[nodes.length * 2];
+        int count = 0;
+        for (int node : nodes) {
+            final int child = mChildren[node * SYMBOLS + digit];
+            if (child != 0) {
+                next[count++] = child;
+            }
+            final int wildcardChild = mChildren[node * SYMBOLS + WILDCARD];
+            if (wildcardChild != 0) {
+                next[count++] = wildcardChild;
+            }
+        }
+        next = sortedDistinct(next, count);
+        final int nextState = getOrAddState(next);
+        mTransitions[state * DIGITS + digit] = nextState;
+        return nextState;
+    }
+
+    private int getOrAddState(int[] nodes) {
+        final StateKey key = new StateKey(nodes);
+        final Integer existing = mStateIds.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (mStateCount == mStateNodes.length) {
+            final int capacity = mStateNodes.length * 2;
+            mStateNodes = Arrays.copyOf(mStateNodes, capacity);
+            mStateAcceptsEnd = Arrays.copyOf(mStateAcceptsEnd, capacity);
+            mStateAcceptsAnySuffix = Arrays.copyOf(mStateAcceptsAnySuffix, capacity);
+            final int oldLength = mTransitions.length;
+            mTransitions = Arrays.copyOf(mTransitions, capacity * DIGITS);
+            Arrays.fill(mTransitions, oldLength, mTransitions.length, UNKNOWN);
+        }
+        final int state = mStateCount++;
+        mStateNodes[state] = nodes;
+        for (int node : nodes) {
+            mStateAcceptsEnd[state] |= mAcceptsEnd[node];
+            mStateAcceptsAnySuffix[state] |= mAcceptsAnySuffix[node];
+        }
+        mStateIds.put(key, state);
+        return state;
+    }
+
+    private void resetStates() {
+        mStateIds.clear();
+        mStateNodes = new int[INITIAL_NODES][];
+        mTransitions = new int[INITIAL_NODES * DIGITS];
+        Arrays.fill(mTransitions, UNKNOWN);
+        mStateAcceptsEnd = new boolean[INITIAL_NODES];
+        mStateAcceptsAnySuffix = new boolean[INITIAL_NODES];
+        mStateCount = 0;
+        getOrAddState(new int[] {0});
+    }
+
+    private int newNode() {
+        if (mNodeCount == mAcceptsEnd.length) {
+            final int capacity = mAcceptsEnd.length * 2;
+            mChildren = Arrays.copyOf(mChildren, capacity * SYMBOLS);
+            mAcceptsEnd = Arrays.copyOf(mAcceptsEnd, capacity);
+            mAcceptsAnySuffix = Arrays.copyOf(mAcceptsAnySuffix, capacity);
+        }
+        return mNodeCount++;
+    }
+
+    private static int symbolAt(String pattern, int index) {
+        final char c = pattern.charAt(index);
+        if (c == '?') {
+            return WILDCARD;
+        }
+        if (c < '0' || c > '9') {
+            throw new IllegalArgumentException("Invalid pattern: " + pattern);
+        }
+        return c - '0';
+    }
+
+    private static int[] sortedDistinct(int[] values, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        Arrays.sort(values, 0, count);
+        int distinct = 1;
+        for (int i = 1; i < count; i++) {
+            if (values[i] != values[distinct - 1]) {
+                values[distinct++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, distinct);
+    }
+
+    private static final class StateKey {
+        final int[] nodes;
+        final int hash;
+
+        StateKey(int[] nodes) {
+            this.nodes = nodes;
+            this.hash = Arrays.hashCode(nodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateKey && Arrays.equals(nodes, ((StateKey) o).nodes);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Caches the SQL the provider runs over and over.
+ *
+ * <ul>
+ *     <li>Compiled {@link SQLiteStatement}s for fixed SQL.  A statement is handed out to one
+ *     caller at a time by {@link #acquireStatement} and goes back to the cache on
+ *     {@link #releaseStatement}; concurrent callers of the same SQL get a fresh statement.
+ *     <li>The SQL built by strict {@link SQLiteQueryBuilder}s, keyed by table, projection,
+ *     selection and sort order, so that repeated queries skip building and validating it.
+ * </ul>
+ *
+ * <p>Statements belong to one {@link SQLiteDatabase}; the cache is dropped if the database
+ * changes.
+ */
+class SqlCache {
+    private static final int MAX_QUERIES = 32;
+
+    private final Object mLock = new Object();
+
+    // All guarded by mLock.
+    private SQLiteDatabase mDatabase;
+    private final ArrayMap<String, SQLiteStatement> mIdleStatements = new ArrayMap<>();
+    private final LruCache<String, String> mQueries = new LruCache<>(MAX_QUERIES);
+    private long mStatementHits;
+    private long mStatementMisses;
+    private long mQueryHits;
+    private long mQueryMisses;
+
+    /**
+     * @return a compiled statement for {@code sql}, which must be given back with
+     * {@link #releaseStatement} once executed.
+     */
+    public @NonNull SQLiteStatement acquireStatement(@NonNull SQLiteDatabase db,
+            @NonNull String sql) {
+        synchronized (mLock) {
+            checkDatabaseLocked(db);
+            final SQLiteStatement statement = mIdleStatements.remove(sql);
+            if (statement != null) {
+                mStatementHits++;
+                return statement;
+            }
+            mStatementMisses++;
+        }
+        return db.compileStatement(sql);
+    }
+
+    public void releaseStatement(@NonNull SQLiteDatabase db, @NonNull String sql,
+            @NonNull SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (mLock) {
+            if (db == mDatabase && !mIdleStatements.containsKey(sql)) {
+                mIdleStatements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Same as {@link SQLiteQueryBuilder#query} on a strict builder for {@code table} and
+     * {@code projectionMap}, reusing the SQL built by earlier queries with the same arguments.
+     */
+    public Cursor query(@NonNull SQLiteDatabase db, @NonNull String table,
+            @NonNull Map<String, String> projectionMap, @Nullable String[] projection,
+            @Nullable String selection, @Nullable String[] selectionArgs,
+            @Nullable String sortOrder, @Nullable String limit,
+            @Nullable CancellationSignal cancellationSignal) {
+        final String key = buildQueryKey(table, projection, selection, sortOrder, limit);
+        String sql;
+        synchronized (mLock) {
+            checkDatabaseLocked(db);
+            sql = mQueries.get(key);
+            if (sql != null) {
+                mQueryHits++;
+            } else {
+                mQueryMisses++;
+            }
+        }
+        if (sql == null) {
+            final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+            qb.setStrict(true);
+            qb.setTables(table);
+            qb.setProjectionMap(projectionMap);
+            if (!TextUtils.isEmpty(selection)) {
+                // Same check as a strict SQLiteQueryBuilder: the selection must not be able to
+                // escape its parentheses.
+                db.validateSql(qb.buildQuery(projection, "(" + selection + ")",
+                        null, null, sortOrder, limit), cancellationSignal);
+            }
+            sql = qb.buildQuery(projection, selection, null, null, sortOrder, limit);
+            synchronized (mLock) {
+                if (db == mDatabase) {
+                    mQueries.put(key, sql);
+                }
+            }
+        }
+        return db.rawQueryWithFactory(null, sql, selectionArgs, table, cancellationSignal);
+    }
+
+    @VisibleForTesting
+    long getStatementHits() {
+        synchronized (mLock) {
+            return mStatementHits;
+        }
+    }
+
+    @VisibleForTesting
+    long getStatementMisses() {
+        synchronized (mLock) {
+            return mStatementMisses;
+        }
+    }
+
+    @VisibleForTesting
+    long getQueryHits() {
+        synchronized (mLock) {
+            return mQueryHits;
+        }
+    }
+
+    @VisibleForTesting
+    long getQueryMisses() {
+        synchronized (mLock) {
+            return mQueryMisses;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(String.format("SQL cache: statements=%d hits=%d misses=%d hitRate=%.3f;"
+                    + " queries=%d hits=%d misses=%d hitRate=%.3f",
+                    mIdleStatements.size(), mStatementHits, mStatementMisses,
+                    hitRate(mStatementHits, mStatementMisses),
+                    mQueries.size(), mQueryHits, mQueryMisses,
+                    hitRate(mQueryHits, mQueryMisses)));
+        }
+    }
+
+    private void checkDatabaseLocked(SQLiteDatabase db) {
+        if (db == mDatabase) {
+            return;
+        }
+        for (int i = 0; i < mIdleStatements.size(); i++) {
+            mIdleStatements.valueAt(i).close();
+        }
+        mIdleStatements.clear();
+        mQueries.evictAll();
+        mDatabase = db;
+    }
+
+    private static String buildQueryKey(String table, String[] projection, String selection,
+            String sortOrder, String limit) {
+        // Separate the parts with characters that don't occur in SQL in practice.
+        final StringBuilder sb = new StringBuilder(table).append('\0');
+        if (projection != null) {
+            for (String column : projection) {
+                sb.append(column).append('\1');
+            }
+        } else {
+            sb.append('*');
+        }
+        return sb.append('\0').append(selection)
+                .append('\0').append(sortOrder)
+                .append('\0').append(limit)
+                .toString();
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
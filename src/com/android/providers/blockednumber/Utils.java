@@ -17,12 +17,21 @@ package com.android.providers.blockednumber;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.location.Country;
 import android.location.CountryDetector;
+import android.location.CountryListener;
+import android.os.Looper;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
 import java.util.Locale;
 
 public class Utils {
@@ -31,10 +40,114 @@ public class Utils {
 
     public static final int MIN_INDEX_LEN = 8;
 
+    private static final int E164_CACHE_SIZE = 1000;
+
+    /**
+     * Caches {@link PhoneNumberUtils#formatNumberToE164} results by raw number, for
+     * {@link #sE164CacheCountryIso}.  An invalid number is cached as "".
+     */
+    private static final LruCache<String, String> sE164Cache = new LruCache<>(E164_CACHE_SIZE);
+
+    /** The country the content of {@link #sE164Cache} was computed for. */
+    private static String sE164CacheCountryIso; // guarded by sE164Cache
+
+    private static final Object sCountryLock = new Object();
+
+    /**
+     * The current country, kept up to date by {@link #startCountryMonitoring}.  {@code null} when
+     * not monitoring, or when it needs to be detected again.
+     */
+    private static volatile String sCurrentCountryIso;
+
+    /** Incremented whenever {@link #sCurrentCountryIso} is reset. */
+    private static int sCountryGeneration; // guarded by sCountryLock
+
+    private static boolean sMonitoringCountry; // guarded by sCountryLock
+
+    /**
+     * Starts listening to country and locale changes, so that {@link #getCurrentCountryIso} can
+     * answer from memory instead of querying the country detector each time.
+     */
+    public static void startCountryMonitoring(@NonNull Context context) {
+        synchronized (sCountryLock) {
+            if (sMonitoringCountry) {
+                return;
+            }
+            sMonitoringCountry = true;
+        }
+        final CountryDetector detector = (CountryDetector) context.getSystemService(
+                Context.COUNTRY_DETECTOR);
+        if (detector != null) {
+            detector.addCountryListener(new CountryListener() {
+                @Override
+                public void onCountryDetected(Country country) {
+                    if (country != null) {
+                        setCurrentCountryIso(country.getCountryIso());
+                    }
+                }
+            }, Looper.getMainLooper());
+        }
+        // The country may come from the locale, so detect it again after a locale change.
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                setCurrentCountryIso(null);
+            }
+        }, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    /**
+     * Forgets the current country and the cached E164 numbers, and stops monitoring, so that the
+     * next {@link #startCountryMonitoring} listens to its own context.
+     */
+    @VisibleForTesting
+    static void resetCountryMonitoring() {
+        synchronized (sCountryLock) {
+            sMonitoringCountry = false;
+            sCountryGeneration++;
+            sCurrentCountryIso = null;
+        }
+        synchronized (sE164Cache) {
+            sE164Cache.evictAll();
+            sE164CacheCountryIso = null;
+        }
+    }
+
+    /** @return the cached current country, or {@code null} if it's not known yet. */
+    public static @Nullable String getCachedCountryIso() {
+        return sCurrentCountryIso;
+    }
+
+    private static void setCurrentCountryIso(@Nullable String countryIso) {
+        synchronized (sCountryLock) {
+            sCountryGeneration++;
+            sCurrentCountryIso = countryIso;
+        }
+    }
+
     /**
      * @return The current country code.
      */
     public static @NonNull String getCurrentCountryIso(@NonNull Context context) {
+        final String cachedCountryIso = sCurrentCountryIso;
+        if (cachedCountryIso != null) {
+            return cachedCountryIso;
+        }
+        final int generation;
+        synchronized (sCountryLock) {
+            generation = sCountryGeneration;
+        }
+        final String countryIso = detectCountryIso(context);
+        synchronized (sCountryLock) {
+            // Only cache if nothing changed while detecting, and if we'll hear about changes.
+            if (sMonitoringCountry && generation == sCountryGeneration) {
+                sCurrentCountryIso = countryIso;
+            }
+        }
+        return countryIso;
+    }
+
+    private static @NonNull String detectCountryIso(@NonNull Context context) {
         final CountryDetector detector = (CountryDetector) context.getSystemService(
                 Context.COUNTRY_DETECTOR);
         if (detector != null) {
@@ -66,9 +179,40 @@ public class Utils {
         if (TextUtils.isEmpty(rawNumber)) {
             return "";
         }
-        final String e164 =
-                PhoneNumberUtils.formatNumberToE164(rawNumber, getCurrentCountryIso(context));
-        return e164 == null ? "" : e164;
+        return formatNumberToE164(rawNumber, getCurrentCountryIso(context));
+    }
+
+    private static @NonNull String formatNumberToE164(@NonNull String rawNumber,
+            @NonNull String countryIso) {
+        String e164;
+        // Check the country and read the entry atomically, so that an entry computed for another
+        // country can't be returned.
+        synchronized (sE164Cache) {
+            if (!countryIso.equals(sE164CacheCountryIso)) {
+                sE164Cache.evictAll();
+                sE164CacheCountryIso = countryIso;
+            }
+            e164 = sE164Cache.get(rawNumber);
+        }
+        if (e164 == null) {
+            e164 = PhoneNumberUtils.formatNumberToE164(rawNumber, countryIso);
+            if (e164 == null) {
+                e164 = "";
+            }
+            // The country may have changed while formatting; don't pollute the cache then.
+            synchronized (sE164Cache) {
+                if (countryIso.equals(sE164CacheCountryIso)) {
+                    sE164Cache.put(rawNumber, e164);
+                }
+            }
+        }
+        return e164;
+    }
+
+    public static void dumpE164Cache(@NonNull PrintWriter pw) {
+        synchronized (sE164Cache) {
+            pw.println("E164 cache: country=" + sE164CacheCountryIso + " " + sE164Cache);
+        }
     }
 
     public static @Nullable String wrapSelectionWithParens(@Nullable String selection) {
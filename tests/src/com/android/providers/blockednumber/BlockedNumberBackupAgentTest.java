@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.backup.BackupDataInput;
+import android.app.backup.BackupDataOutput;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.location.Country;
+import android.os.ParcelFileDescriptor;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.blockednumber.BlockedNumberBackupAgent.BackedUpBlockedNumber;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * runtest --path packages/providers/BlockedNumberProvider/tests
+ */
+@SmallTest
+public class BlockedNumberBackupAgentTest extends AndroidTestCase {
+    private static final List<BackedUpBlockedNumber> SHARD = Arrays.asList(
+            new BackedUpBlockedNumber(1, "650-555-1234", "+16505551234"),
+            new BackedUpBlockedNumber(2, "+44 20 7946 0000", "+442079460000"),
+            new BackedUpBlockedNumber(5, "abc@example.com", "abc@example.com"),
+            // Blocked in another country.
+            new BackedUpBlockedNumber(7, "650-555-0000", "+33650555000"),
+            new BackedUpBlockedNumber(8, "123", ""),
+            new BackedUpBlockedNumber(9, "1234", null),
+            new BackedUpBlockedNumber(99, "1-800-FLOWERS", "+18003569377"));
+
+    private MyMockContext mSourceContext;
+    private MyMockContext mTargetContext;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Utils.resetCountryMonitoring();
+        mSourceContext = createMockContext();
+        mTargetContext = createMockContext();
+        mDir = new File(getContext().getCacheDir(), "blocked_number_backup_test");
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSourceContext.shutdown();
+        mTargetContext.shutdown();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private MyMockContext createMockContext() {
+        final MyMockContext context = new MyMockContext(getContext());
+        context.initializeContext();
+        when(context.mUserManager.isPrimaryUser()).thenReturn(true);
+        when(context.mCountryDetector.detectCountry())
+                .thenReturn(new Country("US", Country.COUNTRY_SOURCE_LOCATION));
+        return context;
+    }
+
+    public void testShard_roundTrip() throws IOException {
+        assertShardEquals(SHARD, BlockedNumberBackupAgent.readShard(
+                BlockedNumberBackupAgent.writeShard(SHARD)));
+        final List<BackedUpBlockedNumber> empty = new ArrayList<>();
+        assertShardEquals(empty, BlockedNumberBackupAgent.readShard(
+                BlockedNumberBackupAgent.writeShard(empty)));
+    }
+
+    /** E164 numbers made of the digits of the original number are stored as their prefix. */
+    public void testShard_prefixedE164Numbers() throws IOException {
+        final List<BackedUpBlockedNumber> prefixed = new ArrayList<>();
+        final List<BackedUpBlockedNumber> written = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final String number = String.format("%04d", i * 37 % 10000);
+            prefixed.add(new BackedUpBlockedNumber(i, "0650-555-" + number, "+33650555" + number));
+            // Blocked in another area: the E164 number isn't made of the original digits.
+            written.add(new BackedUpBlockedNumber(i, "0650-555-" + number, "+33750555" + number));
+        }
+        final byte[] payload = BlockedNumberBackupAgent.writeShard(prefixed);
+        assertShardEquals(prefixed, BlockedNumberBackupAgent.readShard(payload));
+        assertShardEquals(written, BlockedNumberBackupAgent.readShard(
+                BlockedNumberBackupAgent.writeShard(written)));
+        assertTrue(payload.length < BlockedNumberBackupAgent.writeShard(written).length);
+    }
+
+    public void testDigestShard() throws IOException {
+        final List<BackedUpBlockedNumber> shard = new ArrayList<>(SHARD);
+        final long digest = BlockedNumberBackupAgent.digestShard(shard);
+        assertEquals(digest, BlockedNumberBackupAgent.digestShard(new ArrayList<>(SHARD)));
+
+        shard.set(5, new BackedUpBlockedNumber(9, "1234", ""));
+        assertFalse(digest == BlockedNumberBackupAgent.digestShard(shard));
+        shard.set(5, new BackedUpBlockedNumber(10, "1234", null));
+        assertFalse(digest == BlockedNumberBackupAgent.digestShard(shard));
+        shard.remove(5);
+        assertFalse(digest == BlockedNumberBackupAgent.digestShard(shard));
+    }
+
+    public void testReadShard_unsupportedVersion() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new DataOutputStream(outputStream).writeInt(3);
+        assertNull(BlockedNumberBackupAgent.readShard(outputStream.toByteArray()));
+    }
+
+    public void testReadLegacyBlockedNumber() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final DataOutputStream dataOutput = new DataOutputStream(outputStream);
+        dataOutput.writeInt(1);
+        writeString(dataOutput, "650-555-1234");
+        writeString(dataOutput, "+16505551234");
+
+        assertBlockedNumberEquals(new BackedUpBlockedNumber(12, "650-555-1234", "+16505551234"),
+                BlockedNumberBackupAgent.readLegacyBlockedNumber(
+                        12, outputStream.toByteArray()));
+    }
+
+    /**
+     * Backups read more than one chunk of rows, and only write the shards which changed since
+     * the previous one.
+     */
+    @MediumTest
+    public void testBackUp_incremental() throws IOException {
+        insertNumbers(mSourceContext, 1234);
+        Map<String, Integer> entities = readEntities(
+                backUp(newFile("state0"), newFile("state1")));
+        assertEquals(13, entities.size());
+        for (int shardStart = 0; shardStart <= 1200; shardStart += 100) {
+            assertTrue(entities.get("shard_" + shardStart) > 0);
+        }
+
+        // Nothing changed.
+        assertTrue(readEntities(backUp(newFile("state1"), newFile("state2"))).isEmpty());
+
+        final ContentResolver resolver = mSourceContext.getContentResolver();
+        resolver.delete(ContentUris.withAppendedId(BlockedNumbers.CONTENT_URI, 150), null, null);
+        entities = readEntities(backUp(newFile("state2"), newFile("state3")));
+        assertEquals(1, entities.size());
+        assertTrue(entities.get("shard_100") > 0);
+
+        for (int id = 1200; id <= 1234; id++) {
+            resolver.delete(ContentUris.withAppendedId(BlockedNumbers.CONTENT_URI, id), null, null);
+        }
+        entities = readEntities(backUp(newFile("state3"), newFile("state4")));
+        assertEquals(1, entities.size());
+        assertEquals(-1, (int) entities.get("shard_1200"));
+
+        // The last backup restores what's left.
+        restore(backUp(newFile("state0"), newFile("state5")));
+        assertEquals(readNumbers(mSourceContext), readNumbers(mTargetContext));
+    }
+
+    @MediumTest
+    public void testRestore() throws IOException {
+        insertNumbers(mSourceContext, 250);
+        final File data = backUp(newFile("state"), newFile("new_state"));
+
+        restore(data);
+        assertEquals(readNumbers(mSourceContext), readNumbers(mTargetContext));
+        mTargetContext.getProvider().flushDataChanges();
+        verify(mTargetContext.mBackupManager, times(1)).dataChanged();
+
+        // Restoring again doesn't add anything.
+        restore(data);
+        assertEquals(readNumbers(mSourceContext), readNumbers(mTargetContext));
+        mTargetContext.getProvider().flushDataChanges();
+        verify(mTargetContext.mBackupManager, times(1)).dataChanged();
+    }
+
+    /** Numbers already blocked, or in both a legacy entity and a shard, are inserted once. */
+    @MediumTest
+    public void testRestore_duplicates() throws IOException {
+        mTargetContext.getContentResolver().insert(BlockedNumbers.CONTENT_URI,
+                createContentValues("650-555-0003", "+16505550003"));
+        mTargetContext.getProvider().flushDataChanges();
+        reset(mTargetContext.mBackupManager);
+
+        final File data = newFile("data");
+        final ParcelFileDescriptor dataFd = ParcelFileDescriptor.open(data,
+                ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE);
+        try {
+            final BackupDataOutput output = new BackupDataOutput(dataFd.getFileDescriptor());
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final DataOutputStream dataOutput = new DataOutputStream(outputStream);
+            dataOutput.writeInt(1);
+            writeString(dataOutput, "650-555-0001");
+            writeString(dataOutput, "+16505550001");
+            writeEntity(output, "1", outputStream.toByteArray());
+            writeEntity(output, "shard_0", BlockedNumberBackupAgent.writeShard(Arrays.asList(
+                    new BackedUpBlockedNumber(1, "650-555-0001", "+16505550001"),
+                    new BackedUpBlockedNumber(2, "650-555-0002", "+16505550002"),
+                    new BackedUpBlockedNumber(3, "650-555-0003", "+16505550003"))));
+        } finally {
+            dataFd.close();
+        }
+
+        restore(data);
+        assertEquals(Arrays.asList("650-555-0003 +16505550003", "650-555-0001 +16505550001",
+                "650-555-0002 +16505550002"), readNumbers(mTargetContext));
+        mTargetContext.getProvider().flushDataChanges();
+        verify(mTargetContext.mBackupManager, times(1)).dataChanged();
+    }
+
+    /** If the bulk insert fails, the numbers are inserted one by one. */
+    @MediumTest
+    public void testRestore_bulkInsertFails() throws IOException {
+        insertNumbers(mSourceContext, 10);
+        final File data = backUp(newFile("state"), newFile("new_state"));
+
+        mTargetContext.getProvider().mFailBulkInsert = true;
+        restore(data);
+        assertEquals(readNumbers(mSourceContext), readNumbers(mTargetContext));
+    }
+
+    private BlockedNumberBackupAgent createAgent(final MyMockContext context) {
+        final BlockedNumberBackupAgent agent = new BlockedNumberBackupAgent() {
+            @Override
+            BlockedNumberDatabaseHelper getDatabaseHelper() {
+                // The provider's in-memory database.
+                return context.getProvider().mDbHelper;
+            }
+        };
+        agent.attach(context);
+        return agent;
+    }
+
+    private File newFile(String name) {
+        return new File(mDir, name);
+    }
+
+    /**
+     * Backs up the numbers of the source provider as the agent would after the backup which
+     * wrote {@code oldState}, if it exists.
+     *
+     * @return the file holding the entities written.
+     */
+    private File backUp(File oldState, File newState) throws IOException {
+        oldState.createNewFile();
+        final File data = newFile(newState.getName() + "_data");
+        final ParcelFileDescriptor oldStateFd = ParcelFileDescriptor.open(oldState,
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        final ParcelFileDescriptor dataFd = ParcelFileDescriptor.open(data,
+                ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE);
+        final ParcelFileDescriptor newStateFd = ParcelFileDescriptor.open(newState,
+                ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE);
+        try {
+            createAgent(mSourceContext).onBackup(oldStateFd,
+                    new BackupDataOutput(dataFd.getFileDescriptor()), newStateFd);
+        } finally {
+            oldStateFd.close();
+            dataFd.close();
+            newStateFd.close();
+        }
+        return data;
+    }
+
+    /** Restores the entities of {@code data} into the target provider. */
+    private void restore(File data) throws IOException {
+        final ParcelFileDescriptor dataFd = ParcelFileDescriptor.open(data,
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        final ParcelFileDescriptor newStateFd = ParcelFileDescriptor.open(
+                newFile("restore_state"), ParcelFileDescriptor.MODE_READ_WRITE
+                        | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        try {
+            createAgent(mTargetContext).onRestore(
+                    new BackupDataInput(dataFd.getFileDescriptor()), 0, newStateFd);
+        } finally {
+            dataFd.close();
+            newStateFd.close();
+        }
+    }
+
+    /** @return the data size of each entity in {@code data} by key, -1 for deleted ones. */
+    private static Map<String, Integer> readEntities(File data) throws IOException {
+        final Map<String, Integer> entities = new LinkedHashMap<>();
+        final ParcelFileDescriptor dataFd = ParcelFileDescriptor.open(data,
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            final BackupDataInput input = new BackupDataInput(dataFd.getFileDescriptor());
+            while (input.readNextHeader()) {
+                entities.put(input.getKey(), input.getDataSize());
+                if (input.getDataSize() >= 0) {
+                    input.skipEntityData();
+                }
+            }
+        } finally {
+            dataFd.close();
+        }
+        return entities;
+    }
+
+    private static void writeEntity(BackupDataOutput output, String key, byte[] payload)
+            throws IOException {
+        output.writeEntityHeader(key, payload.length);
+        output.writeEntityData(payload, payload.length);
+    }
+
+    private static void insertNumbers(MyMockContext context, int count) {
+        final ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = createContentValues(String.format("650-555-%04d", i), null);
+        }
+        // A few numbers whose E164 number isn't made of their digits.
+        values[0] = createContentValues("abc@example.com", null);
+        values[1] = createContentValues("1-800-FLOWERS", null);
+        values[2] = createContentValues("123", null);
+        assertEquals(count, context.getContentResolver().bulkInsert(
+                BlockedNumbers.CONTENT_URI, values));
+    }
+
+    private static ContentValues createContentValues(String originalNumber, String e164Number) {
+        final ContentValues values = new ContentValues();
+        values.put(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, originalNumber);
+        if (e164Number != null) {
+            values.put(BlockedNumbers.COLUMN_E164_NUMBER, e164Number);
+        }
+        return values;
+    }
+
+    /** @return the original and E164 numbers of {@code context}'s provider, in ID order. */
+    private static List<String> readNumbers(MyMockContext context) {
+        final List<String> numbers = new ArrayList<>();
+        try (Cursor c = context.getContentResolver().query(BlockedNumbers.CONTENT_URI,
+                new String[] {BlockedNumbers.COLUMN_ORIGINAL_NUMBER,
+                        BlockedNumbers.COLUMN_E164_NUMBER},
+                null, null, BlockedNumbers.COLUMN_ID)) {
+            while (c.moveToNext()) {
+                numbers.add(c.getString(0) + " " + c.getString(1));
+            }
+        }
+        return numbers;
+    }
+
+    private static void writeString(DataOutputStream dataOutput, String value)
+            throws IOException {
+        dataOutput.writeBoolean(value != null);
+        if (value != null) {
+            dataOutput.writeUTF(value);
+        }
+    }
+
+    private static void assertShardEquals(List<BackedUpBlockedNumber> expected,
+            List<BackedUpBlockedNumber> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertBlockedNumberEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static void assertBlockedNumberEquals(BackedUpBlockedNumber expected,
+            BackedUpBlockedNumber actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.originalNumber, actual.originalNumber);
+        assertEquals(expected.e164Number, actual.e164Number);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.providers.blockednumber.BlockedNumberDatabaseHelper.Tables;
+import com.android.providers.blockednumber.BlockedNumberProvider.BlockingRules;
+
+import java.io.File;
+
+/**
+ * runtest --path packages/providers/BlockedNumberProvider/tests
+ */
+@MediumTest
+public class BlockedNumberDatabaseHelperTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "blockednumbers-test.db";
+
+    /** More than one chunk of the version 4 backfill. */
+    private static final int NUM_ROWS = 1234;
+
+    private File mDatabaseFile;
+    private BlockedNumberDatabaseHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabaseFile = getContext().getDatabasePath(DATABASE_NAME);
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        mDatabaseFile.getParentFile().mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHelper != null) {
+            mHelper.closeForTest();
+        }
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion2() {
+        createVersion2Database(/* withRulesTable =*/ false);
+        assertUpgraded(/* hadRules =*/ false);
+    }
+
+    public void testUpgradeFromVersion3() {
+        createVersion2Database(/* withRulesTable =*/ true);
+        assertUpgraded(/* hadRules =*/ true);
+    }
+
+    /**
+     * Creates the version 2 schema, plus the rules table for version 3, and seeds it with
+     * numbers with and without E164 numbers.
+     */
+    private void createVersion2Database(boolean withRulesTable) {
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null);
+        try {
+            db.execSQL("CREATE TABLE blocked (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "original_number TEXT NOT NULL UNIQUE," +
+                    "e164_number TEXT)");
+            db.execSQL("CREATE INDEX blocked_number_idx_original ON blocked (original_number);");
+            db.execSQL("CREATE INDEX blocked_number_idx_e164 ON blocked (e164_number);");
+            if (withRulesTable) {
+                BlockedNumberDatabaseHelper.createRulesTable(db);
+                db.execSQL("INSERT INTO " + Tables.RULES + " (" + BlockingRules.COLUMN_TYPE +
+                        ", " + BlockingRules.COLUMN_RULE + ") VALUES (?, '+1900')",
+                        new Object[] {BlockingRules.TYPE_PREFIX});
+            }
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < NUM_ROWS; i++) {
+                    db.execSQL("INSERT INTO blocked (original_number, e164_number) VALUES (?, ?)",
+                            new Object[] {originalNumber(i), e164Number(i)});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(withRulesTable ? 3 : 2);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void assertUpgraded(boolean hadRules) {
+        mHelper = BlockedNumberDatabaseHelper.newInstanceForTest(
+                getContext(), mDatabaseFile.getPath());
+        final SQLiteDatabase db = mHelper.getReadableDatabase();
+        assertEquals(4, db.getVersion());
+
+        // No row was dropped, and each one has the lookup key of its E164 number.
+        try (Cursor c = db.query(Tables.BLOCKED_NUMBERS, new String[] {
+                BlockedNumbers.COLUMN_ORIGINAL_NUMBER, BlockedNumbers.COLUMN_E164_NUMBER,
+                BlockedNumberDatabaseHelper.COLUMN_LOOKUP_KEY},
+                null, null, null, null, BlockedNumbers.COLUMN_ID)) {
+            assertEquals(NUM_ROWS, c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                assertEquals(originalNumber(i), c.getString(0));
+                assertEquals(e164Number(i), c.getString(1));
+                final Long expected = BlockedNumberDatabaseHelper.getLookupKey(e164Number(i));
+                if (expected == null) {
+                    assertTrue(c.isNull(2));
+                } else {
+                    assertEquals((long) expected, c.getLong(2));
+                }
+            }
+        }
+        assertTrue(DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM blocked " +
+                "WHERE lookup_key IS NOT NULL", null) > NUM_ROWS / 2);
+
+        // The partial indexes replaced the old ones.
+        assertEquals("CREATE INDEX blocked_number_idx_lookup_key ON blocked (lookup_key) " +
+                "WHERE lookup_key IS NOT NULL",
+                DatabaseUtils.stringForQuery(db, "SELECT sql FROM sqlite_master " +
+                        "WHERE name='blocked_number_idx_lookup_key'", null));
+        assertEquals("CREATE INDEX blocked_number_idx_unkeyed_e164 ON blocked (e164_number) " +
+                "WHERE lookup_key IS NULL",
+                DatabaseUtils.stringForQuery(db, "SELECT sql FROM sqlite_master " +
+                        "WHERE name='blocked_number_idx_unkeyed_e164'", null));
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master " +
+                "WHERE name IN ('blocked_number_idx_original', 'blocked_number_idx_e164')",
+                null));
+
+        // The rules table exists, and existing rules are kept.
+        assertEquals(hadRules ? 1 : 0, DatabaseUtils.queryNumEntries(db, Tables.RULES));
+        if (hadRules) {
+            assertEquals("+1900", DatabaseUtils.stringForQuery(db, "SELECT " +
+                    BlockingRules.COLUMN_RULE + " FROM " + Tables.RULES + " WHERE " +
+                    BlockingRules.COLUMN_TYPE + "=" + BlockingRules.TYPE_PREFIX, null));
+        }
+    }
+
+    private static String originalNumber(int i) {
+        return i % 10 == 0 ? "user" + i + "@example.com" : "1-650-555-" + i;
+    }
+
+    /**
+     * Emails are their own E164 number, which has no lookup key; older rows may have an empty
+     * E164 number or none at all.
+     */
+    private static String e164Number(int i) {
+        switch (i % 10) {
+            case 0:
+                return originalNumber(i);
+            case 1:
+                return null;
+            case 2:
+                return "";
+            default:
+                return "+1650555" + String.format("%04d", i);
+        }
+    }
+}
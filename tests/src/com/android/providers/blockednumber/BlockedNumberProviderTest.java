@@ -15,10 +15,12 @@
  */
 package com.android.providers.blockednumber;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -26,17 +28,28 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.AppOpsManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.location.Country;
+import android.location.CountryListener;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.PersistableBundle;
+import android.os.ResultReceiver;
 import android.os.SystemProperties;
 import android.provider.BlockedNumberContract;
 import android.provider.BlockedNumberContract.BlockedNumbers;
@@ -48,10 +61,23 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.MediumTest;
 
+import com.android.internal.os.BackgroundThread;
+import com.android.providers.blockednumber.BlockedNumberProvider.BlockingRules;
+
 import junit.framework.Assert;
 
+import org.mockito.ArgumentCaptor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * runtest --path packages/providers/BlockedNumberProvider/tests
@@ -65,6 +91,7 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
     protected void setUp() throws Exception {
         super.setUp();
         BlockedNumberProvider.ALLOW_SELF_CALL = false;
+        Utils.resetCountryMonitoring();
 
         mMockContext = spy(new MyMockContext(getContext()));
         mMockContext.initializeContext();
@@ -160,6 +187,116 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
         assertContents(8, "12345", "");
     }
 
+    public void testCountryChange_evictsE164Cache() {
+        final ArgumentCaptor<CountryListener> listener =
+                ArgumentCaptor.forClass(CountryListener.class);
+        verify(mMockContext.mCountryDetector).addCountryListener(
+                listener.capture(), any(Looper.class));
+
+        // Formatted and cached for the US, where it isn't valid.
+        assertFalse("+81453811111".equals(
+                Utils.getE164Number(mMockContext, "045-381-1111", null)));
+
+        listener.getValue().onCountryDetected(new Country("JP", Country.COUNTRY_SOURCE_NETWORK));
+        assertEquals("+81453811111", Utils.getE164Number(mMockContext, "045-381-1111", null));
+        // The listener keeps the country up to date without detecting it again.
+        verify(mMockContext.mCountryDetector, times(1)).detectCountry();
+    }
+
+    public void testLocaleChange_detectsCountryAgain() {
+        assertEquals("US", Utils.getCurrentCountryIso(mMockContext));
+        assertEquals("US", Utils.getCurrentCountryIso(mMockContext));
+        verify(mMockContext.mCountryDetector, times(1)).detectCountry();
+
+        doReturn(new Country("JP", Country.COUNTRY_SOURCE_LOCATION))
+                .when(mMockContext.mCountryDetector).detectCountry();
+        mMockContext.deliverBroadcast(new Intent(Intent.ACTION_LOCALE_CHANGED));
+        assertEquals("JP", Utils.getCurrentCountryIso(mMockContext));
+        assertEquals("JP", Utils.getCurrentCountryIso(mMockContext));
+        verify(mMockContext.mCountryDetector, times(2)).detectCountry();
+    }
+
+    public void testQueryPages() {
+        for (int i = 0; i < 5; i++) {
+            insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1-500-454-111" + i));
+        }
+
+        assertPage(new long[] {1, 2}, pageUri(null, 2));
+        assertPage(new long[] {3, 4}, pageUri(2L, 2));
+
+        // Rows changed before the current position don't shift the next pages.
+        mResolver.delete(ContentUris.withAppendedId(BlockedNumbers.CONTENT_URI, 1), null, null);
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1-500-454-2222"));
+        assertPage(new long[] {5, 6}, pageUri(4L, 2));
+        assertPage(new long[] {}, pageUri(6L, 2));
+        assertPage(new long[] {2, 3, 4, 5, 6}, pageUri(0L, null));
+
+        // The selection still applies.
+        try (Cursor c = mResolver.query(pageUri(2L, 10), null,
+                BlockedNumbers.COLUMN_ORIGINAL_NUMBER + "!=?",
+                new String[] {"1-500-454-1113"}, null)) {
+            assertEquals(3, c.getCount());
+        }
+
+        queryExpectingFailure(pageUri(null, -1), null);
+        queryExpectingFailure(BlockedNumbers.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BlockedNumberProvider.QUERY_PARAMETER_AFTER_ID, "x")
+                .build(), null);
+        queryExpectingFailure(pageUri(2L, 2), BlockedNumbers.COLUMN_ORIGINAL_NUMBER);
+    }
+
+    private static Uri pageUri(Long afterId, Integer limit) {
+        final Uri.Builder builder = BlockedNumbers.CONTENT_URI.buildUpon();
+        if (afterId != null) {
+            builder.appendQueryParameter(BlockedNumberProvider.QUERY_PARAMETER_AFTER_ID,
+                    Long.toString(afterId));
+        }
+        if (limit != null) {
+            builder.appendQueryParameter(BlockedNumberProvider.QUERY_PARAMETER_LIMIT,
+                    Integer.toString(limit));
+        }
+        return builder.build();
+    }
+
+    private void assertPage(long[] expectedIds, Uri uri) {
+        try (Cursor c = mResolver.query(uri, null, null, null, null)) {
+            final long[] ids = new long[c.getCount()];
+            while (c.moveToNext()) {
+                ids[c.getPosition()] = c.getLong(c.getColumnIndex(BlockedNumbers.COLUMN_ID));
+            }
+            assertTrue(Arrays.toString(ids), Arrays.equals(expectedIds, ids));
+        }
+    }
+
+    private void queryExpectingFailure(Uri uri, String sortOrder) {
+        try {
+            mResolver.query(uri, null, null, null, sortOrder);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testExport() throws Exception {
+        assertTrue(Arrays.equals(new String[] {"text/csv"},
+                mResolver.getStreamTypes(BlockedNumbers.CONTENT_URI, "text/*")));
+        assertNull(mResolver.getStreamTypes(BlockedNumbers.CONTENT_URI, "image/*"));
+
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+1-500-454-1111"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "12345"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "a,\"b\"@gmail.com"));
+
+        try (AssetFileDescriptor afd = mResolver.openTypedAssetFileDescriptor(
+                BlockedNumbers.CONTENT_URI, "text/csv", null);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     afd.createInputStream(), StandardCharsets.UTF_8))) {
+            assertEquals("_id,original_number,e164_number", reader.readLine());
+            assertEquals("1,+1-500-454-1111,+15004541111", reader.readLine());
+            assertEquals("2,12345,", reader.readLine());
+            assertEquals("3,\"a,\"\"b\"\"@gmail.com\",", reader.readLine());
+            assertNull(reader.readLine());
+        }
+    }
+
     public void testChangesNotified() throws Exception {
         Cursor c = mResolver.query(BlockedNumbers.CONTENT_URI, null, null, null, null);
 
@@ -168,15 +305,17 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
             @Override
             public void onChange(boolean selfChange) {
                 Assert.assertFalse(selfChange);
-                latch.notify();
+                latch.countDown();
             }
         };
         c.registerContentObserver(contentObserver);
 
         try {
             Uri uri = insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "14506507000"));
+            flushDataChanges();
             mResolver.delete(uri, null, null);
-            latch.await(10, TimeUnit.SECONDS);
+            flushDataChanges();
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
             verify(mMockContext.mBackupManager, times(2)).dataChanged();
         } catch (Exception e) {
             fail(e.toString());
@@ -185,6 +324,229 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
         }
     }
 
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[] {
+                cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "123"),
+                cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+1-500-454-1111"),
+                cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "045-111-2222",
+                        BlockedNumbers.COLUMN_E164_NUMBER, "+81451112222"),
+                cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "123"),
+        };
+        assertEquals(4, mResolver.bulkInsert(BlockedNumbers.CONTENT_URI, values));
+
+        assertRowCount(3, BlockedNumbers.CONTENT_URI);
+        assertIsBlocked(true, "123");
+        assertIsBlocked(true, "500-454 1111");
+        assertIsBlocked(true, "+81 45 111 2222");
+        flushDataChanges();
+        verify(mMockContext.mBackupManager, times(1)).dataChanged();
+
+        // An invalid row fails the whole batch.
+        values = new ContentValues[] {
+                cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "456"),
+                cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, ""),
+        };
+        try {
+            mResolver.bulkInsert(BlockedNumbers.CONTENT_URI, values);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertRowCount(3, BlockedNumbers.CONTENT_URI);
+        assertIsBlocked(false, "456");
+    }
+
+    public void testImport() throws Exception {
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "123"));
+        flushDataChanges();
+        reset(mMockContext.mBackupManager);
+
+        final StringBuilder sb = new StringBuilder("# Spam list\n");
+        for (int i = 0; i < 1200; i++) {
+            sb.append("+1-500-454-").append(String.format("%04d", i)).append('\n');
+        }
+        sb.append('\n').append("123\n").append("  456  \n");
+        final File file = new File(getContext().getCacheDir(), "import.txt");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ArrayList<Integer> progress = new ArrayList<>();
+        Bundle extras = new Bundle();
+        extras.putParcelable(BlockedNumberProvider.EXTRA_FILE_DESCRIPTOR,
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        extras.putParcelable(BlockedNumberProvider.EXTRA_PROGRESS_RECEIVER,
+                new ResultReceiver(null) {
+                    @Override
+                    protected void onReceiveResult(int resultCode, Bundle resultData) {
+                        progress.add(resultData.getInt(
+                                BlockedNumberProvider.RES_NUM_ROWS_IMPORTED));
+                    }
+                });
+        Bundle res = mResolver.call(BlockedNumberContract.AUTHORITY_URI,
+                BlockedNumberProvider.METHOD_IMPORT, null, extras);
+        file.delete();
+
+        assertEquals(1202, res.getInt(BlockedNumberProvider.RES_NUM_ROWS_IMPORTED));
+        assertEquals(0, res.getInt(BlockedNumberProvider.RES_NUM_ROWS_REJECTED));
+        assertEquals(0, res.getIntArray(BlockedNumberProvider.RES_REJECTED_LINES).length);
+        assertEquals(Arrays.asList(500, 1000, 1202), progress);
+        assertRowCount(1202, BlockedNumbers.CONTENT_URI);
+        assertIsBlocked(true, "500-454 0000");
+        assertIsBlocked(true, "500-454 1199");
+        assertIsBlocked(true, "456");
+
+        flushDataChanges();
+        verify(mMockContext.mBackupManager, times(1)).dataChanged();
+
+        try {
+            mResolver.call(BlockedNumberContract.AUTHORITY_URI,
+                    BlockedNumberProvider.METHOD_IMPORT, null, new Bundle());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testImport_rejectsInvalidLines() throws Exception {
+        final Bundle res = importNumbers("# Spam list\n" +
+                "123\n" +
+                "not a number\n" +
+                "abc.def@gmail.com\n" +
+                "+1 (650) 253-0000\n" +
+                "12a4\n" +
+                "\n" +
+                "1+2\n" +
+                "+\n" +
+                "*67#\n" +
+                "a@b\n" +
+                "1-800-FLOWERS\n");
+
+        assertEquals(4, res.getInt(BlockedNumberProvider.RES_NUM_ROWS_IMPORTED));
+        assertEquals(6, res.getInt(BlockedNumberProvider.RES_NUM_ROWS_REJECTED));
+        assertTrue(Arrays.equals(new int[] {3, 6, 8, 9, 11, 12},
+                res.getIntArray(BlockedNumberProvider.RES_REJECTED_LINES)));
+        assertRowCount(4, BlockedNumbers.CONTENT_URI);
+        assertIsBlocked(true, "123");
+        assertIsBlocked(true, "abc.def@gmail.com");
+        assertIsBlocked(true, "650-253-0000");
+        assertIsBlocked(false, "12a4");
+    }
+
+    public void testImport_exportedCsv() throws Exception {
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+1-500-454-1111"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "12345"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "abc.def@gmail.com"));
+
+        final StringBuilder sb = new StringBuilder();
+        try (AssetFileDescriptor afd = mResolver.openTypedAssetFileDescriptor(
+                BlockedNumbers.CONTENT_URI, "text/csv", null);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     afd.createInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append("\r\n");
+            }
+        }
+        mResolver.delete(BlockedNumbers.CONTENT_URI, null, null);
+        assertRowCount(0, BlockedNumbers.CONTENT_URI);
+
+        // Lines 5 and 6 are not rows of the export.
+        sb.append("4,\"1-650-253-0000\r\n");
+        sb.append("5,67890\r\n");
+        sb.append("6,\"1-650-253-0001\",\r\n");
+        final Bundle res = importNumbers(sb.toString());
+
+        assertEquals(4, res.getInt(BlockedNumberProvider.RES_NUM_ROWS_IMPORTED));
+        assertTrue(Arrays.equals(new int[] {5, 6},
+                res.getIntArray(BlockedNumberProvider.RES_REJECTED_LINES)));
+        assertRowCount(4, BlockedNumbers.CONTENT_URI);
+        assertIsBlocked(true, "500-454 1111");
+        assertIsBlocked(true, "12345");
+        assertIsBlocked(true, "abc.def@gmail.com");
+        assertIsBlocked(true, "650-253 0001");
+        assertIsBlocked(false, "650-253 0000");
+        assertIsBlocked(false, "67890");
+    }
+
+    private Bundle importNumbers(String contents) throws Exception {
+        final File file = new File(getContext().getCacheDir(), "import.txt");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            final Bundle extras = new Bundle();
+            extras.putParcelable(BlockedNumberProvider.EXTRA_FILE_DESCRIPTOR,
+                    ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+            return mResolver.call(BlockedNumberContract.AUTHORITY_URI,
+                    BlockedNumberProvider.METHOD_IMPORT, null, extras);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testApplyBatch() throws Exception {
+        Uri existing = insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "123"));
+        flushDataChanges();
+        reset(mMockContext.mBackupManager);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(ContentProviderOperation.newInsert(BlockedNumbers.CONTENT_URI)
+                .withValue(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+1-500-454-1111")
+                .build());
+        ops.add(ContentProviderOperation.newDelete(existing).build());
+        // Delete the row inserted by the first operation through a back reference.
+        ops.add(ContentProviderOperation.newDelete(BlockedNumbers.CONTENT_URI)
+                .withSelection(BlockedNumbers.COLUMN_ID + "=?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(BlockedNumbers.CONTENT_URI)
+                .withValue(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "456")
+                .build());
+
+        mMockContext.mNotifiedUris.clear();
+        ContentProviderResult[] results =
+                mResolver.applyBatch(BlockedNumberContract.AUTHORITY, ops);
+        assertEquals(4, results.length);
+        assertEquals(1, (int) results[1].count);
+        assertEquals(1, (int) results[2].count);
+
+        assertRowCount(1, BlockedNumbers.CONTENT_URI);
+        assertIsBlocked(false, "123");
+        assertIsBlocked(false, "500-454 1111");
+        assertIsBlocked(true, "456");
+        flushDataChanges();
+        verify(mMockContext.mBackupManager, times(1)).dataChanged();
+        // The rows are collapsed into the table.
+        assertEquals(Arrays.asList(BlockedNumbers.CONTENT_URI), mMockContext.mNotifiedUris);
+
+        // A failing operation rolls back the whole batch.
+        ops.clear();
+        ops.add(ContentProviderOperation.newInsert(BlockedNumbers.CONTENT_URI)
+                .withValue(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "789")
+                .build());
+        ops.add(ContentProviderOperation.newInsert(BlockedNumbers.CONTENT_URI)
+                .withValue(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "")
+                .build());
+        try {
+            mResolver.applyBatch(BlockedNumberContract.AUTHORITY, ops);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertRowCount(1, BlockedNumbers.CONTENT_URI);
+        assertIsBlocked(false, "789");
+        flushDataChanges();
+        verify(mMockContext.mBackupManager, times(1)).dataChanged();
+
+        // Callers which can't write can't start a batch, not even an empty one.
+        doReturn(PackageManager.PERMISSION_DENIED)
+                .when(mMockContext).checkCallingPermission(anyString());
+        try {
+            mResolver.applyBatch(BlockedNumberContract.AUTHORITY,
+                    new ArrayList<ContentProviderOperation>());
+            fail();
+        } catch (SecurityException expected) {
+        }
+    }
+
     private Uri insert(ContentValues cv) {
         final Uri uri = mResolver.insert(BlockedNumbers.CONTENT_URI, cv);
         assertNotNull(uri);
@@ -327,6 +689,21 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
                 mMockContext.mIntentsBroadcasted.get(0));
     }
 
+    public void testCarrierConfigChange_rereadsValues() {
+        when(mMockContext.mCarrierConfigManager.getConfig()).thenReturn(getBundleWithInt(1000));
+        assertBlockSuppressionSeconds(1000);
+
+        // Cached until the carrier config changes.
+        when(mMockContext.mCarrierConfigManager.getConfig()).thenReturn(getBundleWithInt(2000));
+        assertBlockSuppressionSeconds(1000);
+        verify(mMockContext.mCarrierConfigManager, times(1)).getConfig();
+
+        mMockContext.deliverBroadcast(
+                new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+        assertBlockSuppressionSeconds(2000);
+        verify(mMockContext.mCarrierConfigManager, times(2)).getConfig();
+    }
+
     public void testEnhancedBlock() {
         String phoneNumber = "5004541111";
 
@@ -487,8 +864,8 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
         assertIsBlocked(true, "123");
 
 
-        // Dialer check is executed twice: once for insert, and once for isBlocked.
-        verify(mMockContext.mTelephonyManager, times(2))
+        // Carrier check is executed once for insert; the result is cached for isBlocked.
+        verify(mMockContext.mTelephonyManager, times(1))
                 .checkCarrierPrivilegesForPackage(anyString());
     }
 
@@ -512,10 +889,51 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
                 BlockedNumbers.CONTENT_URI, cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "123"));
         assertIsBlocked(true, "123");
 
-        // Dialer check is executed twice: once for insert, and once for isBlocked.
+        // Dialer check is executed once for insert; the result is cached for isBlocked.
+        verify(mMockContext.mTelecomManager, times(1)).getDefaultDialerPackage();
+    }
+
+    public void testDefaultDialerChange_revokesAccess() {
+        doReturn(PackageManager.PERMISSION_DENIED)
+                .when(mMockContext).checkCallingPermission(anyString());
+        when(mMockContext.mTelecomManager.getDefaultDialerPackage())
+                .thenReturn(getContext().getPackageName());
+        assertIsBlocked(false, "123");
+
+        when(mMockContext.mTelecomManager.getDefaultDialerPackage())
+                .thenReturn("com.example.dialer");
+        // Still cached.
+        assertIsBlocked(false, "123");
+
+        mMockContext.deliverBroadcast(new Intent(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED));
+        try {
+            BlockedNumberContract.isBlocked(mMockContext, "123");
+            fail("SecurityException expected");
+        } catch (SecurityException expected) {
+        }
         verify(mMockContext.mTelecomManager, times(2)).getDefaultDialerPackage();
     }
 
+    public void testPackageChange_revokesCarrierAccess() {
+        doReturn(PackageManager.PERMISSION_DENIED)
+                .when(mMockContext).checkCallingPermission(anyString());
+        when(mMockContext.mTelephonyManager.checkCarrierPrivilegesForPackage(anyString()))
+                .thenReturn(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS);
+        assertIsBlocked(false, "123");
+
+        when(mMockContext.mTelephonyManager.checkCarrierPrivilegesForPackage(anyString()))
+                .thenReturn(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        mMockContext.deliverBroadcast(new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.fromParts("package", getContext().getPackageName(), null)));
+        try {
+            BlockedNumberContract.isBlocked(mMockContext, "123");
+            fail("SecurityException expected");
+        } catch (SecurityException expected) {
+        }
+        verify(mMockContext.mTelephonyManager, times(2))
+                .checkCarrierPrivilegesForPackage(anyString());
+    }
+
     public void testPrivilegedAppCannotUseSystemApis() {
         reset(mMockContext.mAppOpsManager);
         doReturn(PackageManager.PERMISSION_DENIED)
@@ -590,6 +1008,323 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
         assertIsBlocked(false, "abcdef@gmail.com");
     }
 
+    public void testIsBlocked_coldIndex() {
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1-500-454-1111"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "abc.def@gmail.com"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "045-381-1111",
+                BlockedNumbers.COLUMN_E164_NUMBER, "+81453811111"));
+
+        // The index is loaded in the background on first use, so at least the first verdict
+        // comes from the database.
+        assertIsBlocked(true, "+1 500 454 1111");
+        assertIsBlocked(true, "abc.def@gmail.com");
+        assertIsBlocked(true, "045-381-1111");
+        assertIsBlocked(false, "+1 500 454 2222");
+        assertIsBlocked(false, "abc@gmail.com");
+    }
+
+    public void testIsBlocked_afterWritesOnLoadedIndex() {
+        // Load the index first so that the writes below have to update it.
+        mMockContext.getProvider().ensureLoaded();
+        assertIsBlocked(false, "500-454 1111");
+
+        Uri uri = insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1-500-454-1111"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+1-500-454-2222"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "15004542222"));
+        assertIsBlocked(true, "500-454 1111");
+        assertIsBlocked(true, "500-454 2222");
+
+        // Replacing a row drops its previous E164 number.
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1-500-454-1111",
+                BlockedNumbers.COLUMN_E164_NUMBER, "+81451112222"));
+        assertIsBlocked(false, "500-454 1111");
+        assertIsBlocked(true, "+81 45 111 2222");
+        assertIsBlocked(true, "1-500-454-1111");
+
+        mResolver.delete(uri, null, null);
+        assertIsBlocked(true, "1-500-454-1111");
+        assertRowCount(2, BlockedNumbers.CONTENT_URI);
+
+        // Two rows share the E164 number; it stays blocked until both are gone.
+        mResolver.delete(BlockedNumbers.CONTENT_URI, BlockedNumbers.COLUMN_ORIGINAL_NUMBER + "=?",
+                new String[]{"15004542222"});
+        assertIsBlocked(true, "500-454 2222");
+        assertEquals(1, BlockedNumberContract.unblock(mMockContext, "+1-500-454-2222"));
+        assertIsBlocked(false, "500-454 2222");
+    }
+
+    public void testIsBlocked_numberKeys() {
+        mMockContext.getProvider().ensureLoaded();
+
+        // Leading zeros and '+' are significant.
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "0123"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+4567"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "abc.def@gmail.com"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "12345678901234567890"));
+        assertIsBlocked(true, "0123");
+        assertIsBlocked(false, "123");
+        assertIsBlocked(false, "00123");
+        assertIsBlocked(true, "+4567");
+        assertIsBlocked(false, "4567");
+        assertIsBlocked(true, "abc.def@gmail.com");
+        assertIsBlocked(true, "12345678901234567890");
+        assertIsBlocked(false, "1234567890123456789");
+
+        assertEquals(1, BlockedNumberContract.unblock(mMockContext, "0123"));
+        assertEquals(1, BlockedNumberContract.unblock(mMockContext, "abc.def@gmail.com"));
+        assertIsBlocked(false, "0123");
+        assertIsBlocked(false, "abc.def@gmail.com");
+        assertIsBlocked(true, "+4567");
+    }
+
+    /**
+     * An explicit E164 number which has no lookup key is still matched, from the database before
+     * the index is loaded and from the index after.
+     */
+    public void testIsBlocked_unkeyedE164Number() {
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "alias",
+                BlockedNumbers.COLUMN_E164_NUMBER, "abc@example.com"));
+        assertNull(BlockedNumberDatabaseHelper.getLookupKey("abc@example.com"));
+
+        // The index is loaded in the background on first use, so this verdict comes from the
+        // database.
+        assertIsBlocked(true, "abc@example.com");
+        mMockContext.getProvider().ensureLoaded();
+        assertIsBlocked(true, "abc@example.com");
+        assertIsBlocked(false, "abd@example.com");
+
+        assertEquals(1, BlockedNumberContract.unblock(mMockContext, "abc@example.com"));
+        assertIsBlocked(false, "abc@example.com");
+        assertRowCount(0, BlockedNumbers.CONTENT_URI);
+    }
+
+    /**
+     * Verdicts answered from the database while the index and the rules are not loaded, which
+     * need write-ahead logging, and so a database file, not to wait for a write transaction.
+     */
+    public void testShouldSystemBlock_duringWriteTransaction() throws Exception {
+        final BlockedNumberProviderTestable provider = mMockContext.getProvider();
+        final File databaseFile = getContext().getDatabasePath("blockednumbers-wal-test.db");
+        SQLiteDatabase.deleteDatabase(databaseFile);
+        databaseFile.getParentFile().mkdirs();
+        provider.mDbHelper.closeForTest();
+        provider.mDbHelper = BlockedNumberDatabaseHelper.newInstanceForTest(
+                getContext(), databaseFile.getPath());
+        try {
+            final SQLiteDatabase db = provider.mDbHelper.getWritableDatabase();
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1-500-454-1111"));
+            insertRule(BlockingRules.TYPE_PREFIX, "+1900");
+
+            final CountDownLatch inTransaction = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final AtomicBoolean writerTimedOut = new AtomicBoolean();
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    db.beginTransaction();
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            db.insert(BlockedNumberDatabaseHelper.Tables.BLOCKED_NUMBERS, null,
+                                    cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1-650-555-" + i));
+                        }
+                        inTransaction.countDown();
+                        writerTimedOut.set(!release.await(10, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        // Roll back.
+                        db.endTransaction();
+                    }
+                }
+            };
+            writer.start();
+            try {
+                assertTrue(inTransaction.await(10, TimeUnit.SECONDS));
+                assertShouldSystemBlock(true, "500-454 1111", null);
+                assertShouldSystemBlock(false, "500-454 2222", null);
+                assertShouldSystemBlock(true, "900-454 2222", null);
+                assertShouldSystemBlock(false, "650-555 1", null);
+            } finally {
+                release.countDown();
+                writer.join();
+            }
+            // The writer was released before it gave up waiting, so the verdicts didn't wait
+            // for its transaction.
+            assertFalse(writerTimedOut.get());
+            assertRowCount(1, BlockedNumbers.CONTENT_URI);
+
+            // Let the load scheduled by the verdicts finish before the database goes away.
+            final CountDownLatch backgroundIdle = new CountDownLatch(1);
+            BackgroundThread.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    backgroundIdle.countDown();
+                }
+            });
+            assertTrue(backgroundIdle.await(10, TimeUnit.SECONDS));
+        } finally {
+            provider.mDbHelper.closeForTest();
+            provider.mDbHelper = BlockedNumberDatabaseHelper.newInstanceForTest(mMockContext);
+            SQLiteDatabase.deleteDatabase(databaseFile);
+        }
+    }
+
+    public void testIsBlockedBatch() {
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "123"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+1-500-454-1111"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "abc.def@gmail.com"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "alias",
+                BlockedNumbers.COLUMN_E164_NUMBER, "abc@example.com"));
+
+        final String[] numbers = new String[] {"123", "1234", null, "", "500-454 1111",
+                "abc.def@gmail.com", "500-454 2222", "abc@example.com", "abd@example.com"};
+        final boolean[] blocked = new boolean[] {
+                true, false, false, false, true, true, false, true, false};
+        // Answered from the database while the index is not loaded, then from the index.
+        assertTrue(Arrays.equals(blocked, isBlockedBatch(numbers)));
+        mMockContext.getProvider().ensureLoaded();
+        assertTrue(Arrays.equals(blocked, isBlockedBatch(numbers)));
+
+        assertTrue(Arrays.equals(new boolean[] {false, false}, isBlockedBatch(null, "")));
+
+        try {
+            mResolver.call(BlockedNumberContract.AUTHORITY_URI,
+                    BlockedNumberProvider.METHOD_IS_BLOCKED_BATCH, null, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            isBlockedBatch(new String[BlockedNumberProvider.MAX_IS_BLOCKED_BATCH_SIZE + 1]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private boolean[] isBlockedBatch(String... numbers) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(BlockedNumberProvider.EXTRA_PHONE_NUMBERS, numbers);
+        Bundle res = mResolver.call(BlockedNumberContract.AUTHORITY_URI,
+                BlockedNumberProvider.METHOD_IS_BLOCKED_BATCH, null, extras);
+        return res.getBooleanArray(BlockedNumberProvider.RES_NUMBERS_ARE_BLOCKED);
+    }
+
+    public void testPrefixRules() {
+        Uri premiumRate = insertRule(BlockingRules.TYPE_PREFIX, "+1 900");
+        insertRule(BlockingRules.TYPE_PREFIX, "+234");
+        assertRowCount(2, BlockingRules.CONTENT_URI);
+        assertRuleContents(premiumRate, BlockingRules.TYPE_PREFIX, "+1900");
+
+        assertIsBlocked(true, "900-255-1234");
+        assertIsBlocked(true, "+1 900 255 1234");
+        assertIsBlocked(true, "+234 803 123 4567");
+        assertIsBlocked(false, "500-454 1111");
+        assertShouldSystemBlock(true, "900-255-1234", null);
+
+        mResolver.delete(premiumRate, null, null);
+        assertRowCount(1, BlockingRules.CONTENT_URI);
+        assertIsBlocked(false, "900-255-1234");
+        assertIsBlocked(true, "+234 803 123 4567");
+
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_RULE, "+1900"));
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_TYPE, BlockingRules.TYPE_PREFIX));
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_TYPE, BlockingRules.TYPE_PREFIX,
+                BlockingRules.COLUMN_RULE, "1900"));
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_TYPE, BlockingRules.TYPE_PREFIX,
+                BlockingRules.COLUMN_RULE, "+1a"));
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_TYPE, 99,
+                BlockingRules.COLUMN_RULE, "+1900"));
+
+        mResolver.delete(BlockingRules.CONTENT_URI, null, null);
+        assertIsBlocked(false, "+234 803 123 4567");
+    }
+
+    public void testPatternRules() {
+        Uri exchange = insertRule(BlockingRules.TYPE_PATTERN, "+1 (650) 253-????");
+        insertRule(BlockingRules.TYPE_PATTERN, "+1500???0000");
+        insertRule(BlockingRules.TYPE_PATTERN, "+1?00*");
+        assertRowCount(3, BlockingRules.CONTENT_URI);
+        assertRuleContents(exchange, BlockingRules.TYPE_PATTERN, "+1650253????");
+
+        assertIsBlocked(true, "650-253-0000");
+        assertIsBlocked(true, "+1 650 253 9876");
+        assertIsBlocked(false, "650-254-0000");
+        assertIsBlocked(true, "500-223-0000");
+        assertIsBlocked(false, "500-223-0001");
+        assertIsBlocked(true, "800-255-1234");
+        assertIsBlocked(true, "900-255-1234");
+        assertIsBlocked(false, "888-255-1234");
+
+        // Overlapping prefix and pattern rules.
+        insertRule(BlockingRules.TYPE_PREFIX, "+1500");
+        mResolver.delete(exchange, null, null);
+        assertIsBlocked(false, "650-253-0000");
+        assertIsBlocked(true, "500-223-0001");
+
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_TYPE, BlockingRules.TYPE_PATTERN,
+                BlockingRules.COLUMN_RULE, "+1*500"));
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_TYPE, BlockingRules.TYPE_PATTERN,
+                BlockingRules.COLUMN_RULE, "+*"));
+        insertRuleExpectingFailure(cv(BlockingRules.COLUMN_TYPE, BlockingRules.TYPE_PREFIX,
+                BlockingRules.COLUMN_RULE, "+1???"));
+
+        mResolver.delete(BlockingRules.CONTENT_URI, null, null);
+        assertIsBlocked(false, "500-223-0000");
+    }
+
+    public void testRules_coldMatcher() {
+        insertRule(BlockingRules.TYPE_PREFIX, "+1900");
+        insertRule(BlockingRules.TYPE_PATTERN, "+1650253????");
+        insertRule(BlockingRules.TYPE_PATTERN, "+1500???0000");
+        insertRule(BlockingRules.TYPE_PATTERN, "+1?00*");
+        flushDataChanges();
+        // Rules aren't backed up.
+        verify(mMockContext.mBackupManager, never()).dataChanged();
+
+        // The query run while the rules are not loaded agrees with the loaded rules.
+        final String[] numbers = new String[] {"+19002551234", "+16502530000", "+16502540000",
+                "+15002230000", "+15002230001", "+18002551234", "+18882551234"};
+        final boolean[] expected = new boolean[] {true, true, false, true, false, true, false};
+        final BlockedNumberProviderTestable provider = mMockContext.getProvider();
+        final SQLiteDatabase db = provider.mDbHelper.getReadableDatabase();
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(numbers[i], expected[i], provider.queryMatchesRules(db, numbers[i]));
+        }
+        assertFalse(provider.queryMatchesRules(db, "16502530000"));
+        assertFalse(provider.queryMatchesRules(db, ""));
+        assertFalse(provider.queryMatchesRules(db, null));
+
+        provider.ensureLoaded();
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(numbers[i], expected[i],
+                    BlockedNumberContract.isBlocked(mMockContext, numbers[i]));
+        }
+    }
+
+    private Uri insertRule(int type, String rule) {
+        final Uri uri = mResolver.insert(BlockingRules.CONTENT_URI,
+                cv(BlockingRules.COLUMN_TYPE, type, BlockingRules.COLUMN_RULE, rule));
+        assertNotNull(uri);
+        return uri;
+    }
+
+    private void insertRuleExpectingFailure(ContentValues cv) {
+        try {
+            mResolver.insert(BlockingRules.CONTENT_URI, cv);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void assertRuleContents(Uri uri, int type, String rule) {
+        try (Cursor c = mResolver.query(uri, null, null, null, null)) {
+            assertEquals(1, c.getCount());
+            c.moveToNext();
+            assertEquals(type, c.getInt(c.getColumnIndex(BlockingRules.COLUMN_TYPE)));
+            assertEquals(rule, c.getString(c.getColumnIndex(BlockingRules.COLUMN_RULE)));
+        }
+    }
+
     public void testUnblock() {
         insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "+1-500-454-1111"));
         insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1500-454-1111"));
@@ -702,6 +1437,64 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
         }
     }
 
+    public void testDataChangesCoalesced() {
+        final CapturingHandler handler = new CapturingHandler();
+        mMockContext.getProvider().setDataChangeHandler(handler);
+
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "123"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "456"));
+        insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "789"));
+        verify(mMockContext.mBackupManager, never()).dataChanged();
+        assertTrue(mMockContext.mNotifiedUris.isEmpty());
+
+        // A single delivery, where the rows are collapsed into the table.
+        assertEquals(1, handler.runPendingMessages());
+        verify(mMockContext.mBackupManager, times(1)).dataChanged();
+        assertEquals(Arrays.asList(BlockedNumbers.CONTENT_URI), mMockContext.mNotifiedUris);
+
+        // Nothing is pending anymore.
+        assertEquals(0, handler.runPendingMessages());
+        verify(mMockContext.mBackupManager, times(1)).dataChanged();
+
+        // A single row keeps its own URI.
+        mMockContext.mNotifiedUris.clear();
+        Uri uri = insert(cv(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, "1234"));
+        assertEquals(1, handler.runPendingMessages());
+        verify(mMockContext.mBackupManager, times(2)).dataChanged();
+        assertEquals(Arrays.asList(uri), mMockContext.mNotifiedUris);
+    }
+
+    /**
+     * Keeps the messages sent to it until {@link #runPendingMessages} rather than queueing them.
+     */
+    private static class CapturingHandler extends Handler {
+        private final ArrayList<Message> mMessages = new ArrayList<>();
+
+        CapturingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public synchronized boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mMessages.add(msg);
+            return true;
+        }
+
+        /** @return the number of messages run. */
+        synchronized int runPendingMessages() {
+            final int count = mMessages.size();
+            for (Message msg : mMessages) {
+                msg.getCallback().run();
+            }
+            mMessages.clear();
+            return count;
+        }
+    }
+
+    private void flushDataChanges() {
+        mMockContext.getProvider().flushDataChanges();
+    }
+
     private void assertIsBlocked(boolean expected, String phoneNumber) {
         assertEquals(expected, BlockedNumberContract.isBlocked(mMockContext, phoneNumber));
     }
@@ -729,6 +1522,18 @@ public class BlockedNumberProviderTest extends AndroidTestCase {
         return bundle;
     }
 
+    /** Starts and ends a block suppression, which must last {@code blockSuppressionSeconds}. */
+    private void assertBlockSuppressionSeconds(int blockSuppressionSeconds) {
+        long timestampMillisBeforeEmergencyContact = System.currentTimeMillis();
+        SystemContract.notifyEmergencyContact(mMockContext);
+        SystemContract.BlockSuppressionStatus status =
+                SystemContract.getBlockSuppressionStatus(mMockContext);
+        assertTrue(status.isSuppressed);
+        assertValidBlockSuppressionExpiration(timestampMillisBeforeEmergencyContact,
+                blockSuppressionSeconds, status.untilTimestampMillis);
+        SystemContract.endBlockSuppression(mMockContext);
+    }
+
     private void verifyBlocksNotSuppressed() {
         SystemContract.BlockSuppressionStatus status =
                 SystemContract.getBlockSuppressionStatus(mMockContext);
@@ -16,8 +16,13 @@
 package com.android.providers.blockednumber;
 
 import android.app.backup.BackupManager;
+import android.content.ContentValues;
+import android.net.Uri;
 
 public class BlockedNumberProviderTestable extends BlockedNumberProvider {
+    /** Makes {@link #bulkInsert} fail, as a bad row would. */
+    boolean mFailBulkInsert;
+
     BlockedNumberProviderTestable(BackupManager backupManager) {
         mBackupManager = backupManager;
     }
@@ -25,9 +30,19 @@ public class BlockedNumberProviderTestable extends BlockedNumberProvider {
     @Override
     public boolean onCreate() {
         mDbHelper = BlockedNumberDatabaseHelper.newInstanceForTest(getContext());
+        Utils.startCountryMonitoring(getContext());
+        registerReceivers();
         return true;
     }
 
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (mFailBulkInsert) {
+            throw new IllegalArgumentException("Bulk insert failed");
+        }
+        return super.bulkInsert(uri, values);
+    }
+
     @Override
     public void shutdown() {
         mDbHelper.getReadableDatabase().close();
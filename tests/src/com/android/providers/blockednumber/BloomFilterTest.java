@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class BloomFilterTest extends TestCase {
+    public void testNoFalseNegatives() {
+        final BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("user" + i + "@example.com");
+            filter.put(NumberKeySet.encode("+1650" + i));
+        }
+        assertEquals(20000, filter.size());
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("user" + i + "@example.com"));
+            assertTrue(filter.mightContain(NumberKeySet.encode("+1650" + i)));
+        }
+    }
+
+    public void testFalsePositiveRate() {
+        final BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(NumberKeySet.encode("+1650" + i));
+            filter.put("user" + i + "@example.com");
+        }
+        // Twice the capacity, so the expected rate is well above the target.
+        assertTrue(filter.getExpectedFalsePositiveRate() > 0.01);
+
+        final BloomFilter halfFull = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            halfFull.put(NumberKeySet.encode("+1650" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (halfFull.mightContain(NumberKeySet.encode("+1408" + i))) {
+                falsePositives++;
+            }
+        }
+        // Consecutive numbers must not collide more than random ones; allow 3x the target.
+        assertTrue("False positives: " + falsePositives, falsePositives < 3000);
+        assertEquals(0.01, halfFull.getExpectedFalsePositiveRate(), 0.005);
+    }
+
+    public void testSizing() {
+        final BloomFilter filter = new BloomFilter(1000, 0.01);
+        assertEquals(1000, filter.getCapacity());
+        // About 9.6 bits and 7 hashes per entry for 1%.
+        assertEquals(7, filter.getNumHashes());
+        assertTrue(filter.getMemorySizeBytes() >= 1000 * 9.5 / 8);
+        assertEquals(0, filter.size());
+        assertEquals(0.0, filter.getExpectedFalsePositiveRate());
+        assertFalse(filter.mightContain("123"));
+        assertFalse(filter.mightContain(NumberKeySet.encode("123")));
+
+        // Degenerate capacities still make a usable filter.
+        final BloomFilter tiny = new BloomFilter(0, 0.5);
+        tiny.put("123");
+        assertTrue(tiny.mightContain("123"));
+    }
+
+    public void testInvalidFalsePositiveRate() {
+        try {
+            new BloomFilter(100, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new BloomFilter(100, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class ChunkedRowReaderTest extends TestCase {
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE t (_id INTEGER PRIMARY KEY AUTOINCREMENT, value TEXT)");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testChunkBoundaries() {
+        assertEquals(0, readValues(null, 10).size());
+        for (int rows = 1; rows <= 31; rows++) {
+            insertValue(Integer.toString(rows));
+            final List<String> values = readValues(null, 10);
+            assertEquals(rows, values.size());
+            for (int i = 0; i < rows; i++) {
+                assertEquals(Integer.toString(i + 1), values.get(i));
+            }
+        }
+    }
+
+    public void testSelection() {
+        for (int i = 0; i < 25; i++) {
+            insertValue(i % 3 == 0 ? "" : Integer.toString(i));
+        }
+        final List<String> values = readValues("value!=''", 4);
+        assertEquals(16, values.size());
+        assertFalse(values.contains(""));
+    }
+
+    /** Rows written between chunks are read if they come after the last ID read. */
+    public void testWritesBetweenChunks() {
+        for (int i = 0; i < 10; i++) {
+            insertValue(Integer.toString(i));
+        }
+        final List<String> values = new ArrayList<>();
+        try (ChunkedRowReader rows = new ChunkedRowReader(
+                mDb, "t", new String[] {"_id", "value"}, null, 5)) {
+            while (rows.moveToNext()) {
+                values.add(rows.getCursor().getString(1));
+                if (rows.getRowCount() == 5) {
+                    mDb.delete("t", "value IN ('0', '7')", null);
+                    insertValue("10");
+                }
+            }
+            assertEquals(10, rows.getRowCount());
+        }
+        assertEquals("[0, 1, 2, 3, 4, 5, 6, 8, 9, 10]", values.toString());
+    }
+
+    public void testInvalidColumns() {
+        try {
+            new ChunkedRowReader(mDb, "t", new String[] {"value", "_id"}, null, 5);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void insertValue(String value) {
+        mDb.execSQL("INSERT INTO t (value) VALUES (?)", new Object[] {value});
+    }
+
+    private List<String> readValues(String selection, int chunkSize) {
+        final List<String> values = new ArrayList<>();
+        try (ChunkedRowReader rows = new ChunkedRowReader(
+                mDb, "t", new String[] {"_id", "value"}, selection, chunkSize)) {
+            while (rows.moveToNext()) {
+                values.add(rows.getCursor().getString(1));
+            }
+            assertEquals(values.size(), rows.getRowCount());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class DigitTrieTest extends TestCase {
+    public void testMatchesPrefixOf() {
+        final DigitTrie trie = new DigitTrie();
+        assertFalse(trie.matchesPrefixOf("+16502530000", 1));
+        assertTrue(trie.add("1650"));
+        assertFalse(trie.add("1650"));
+        assertTrue(trie.add("1900555"));
+
+        assertTrue(trie.matchesPrefixOf("+16502530000", 1));
+        assertTrue(trie.matchesPrefixOf("1650", 0));
+        assertFalse(trie.matchesPrefixOf("165", 0));
+        assertFalse(trie.matchesPrefixOf("+1651", 1));
+        assertTrue(trie.matchesPrefixOf("19005551234", 0));
+        assertFalse(trie.matchesPrefixOf("1900-555-1234", 0));
+        assertFalse(trie.matchesPrefixOf("", 0));
+
+        assertTrue(trie.remove("1650"));
+        assertFalse(trie.remove("1650"));
+        assertFalse(trie.remove("16"));
+        assertFalse(trie.matchesPrefixOf("+16502530000", 1));
+        assertEquals(1, trie.size());
+
+        assertTrue(trie.add("1650"));
+        assertTrue(trie.matchesPrefixOf("+16502530000", 1));
+    }
+
+    /** Adds enough prefixes that the node arrays grow several times. */
+    public void testGrow() {
+        final DigitTrie trie = new DigitTrie();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(trie.add("1" + i));
+        }
+        assertEquals(1000, trie.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(trie.matchesPrefixOf("1" + i + "000", 0));
+        }
+        assertFalse(trie.matchesPrefixOf("2", 0));
+        assertFalse(trie.matchesPrefixOf("1", 0));
+    }
+}
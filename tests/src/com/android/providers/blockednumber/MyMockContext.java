@@ -17,13 +17,17 @@ package com.android.providers.blockednumber;
 
 import android.app.AppOpsManager;
 import android.app.backup.BackupManager;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
 import android.location.CountryDetector;
+import android.net.Uri;
 import android.os.UserManager;
 import android.provider.BlockedNumberContract;
 import android.telecom.TelecomManager;
@@ -31,11 +35,13 @@ import android.telephony.CarrierConfigManager;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentResolver;
 import android.test.mock.MockContext;
+import android.util.Pair;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -61,6 +67,8 @@ public class MyMockContext extends MockContext {
     private BlockedNumberProviderTestable mProvider;
     private Context mRealTestContext;
     final List<String> mIntentsBroadcasted = new ArrayList<>();
+    final List<Uri> mNotifiedUris = Collections.synchronizedList(new ArrayList<Uri>());
+    private final List<Pair<BroadcastReceiver, IntentFilter>> mReceivers = new ArrayList<>();
 
     public MyMockContext(Context realTestContext) {
         this.mRealTestContext = realTestContext;
@@ -115,9 +123,32 @@ public class MyMockContext extends MockContext {
         mIntentsBroadcasted.add(intent.getAction());
     }
 
+    @Override
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        mReceivers.add(Pair.create(receiver, filter));
+        return null;
+    }
+
+    /** Delivers {@code intent} to the registered receivers whose filter matches it. */
+    void deliverBroadcast(Intent intent) {
+        for (Pair<BroadcastReceiver, IntentFilter> receiver : mReceivers) {
+            if (receiver.second.match(getContentResolver(), intent, false, "MyMockContext") >= 0) {
+                receiver.first.onReceive(this, intent);
+            }
+        }
+    }
+
     public void initializeContext() {
         registerServices();
-        mResolver = new MockContentResolver();
+        mResolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+                mNotifiedUris.add(uri);
+                // MockContentResolver drops notifications; deliver them to the observers, e.g.
+                // of cursors, which registered through it.
+                mRealTestContext.getContentResolver().notifyChange(uri, observer, syncToNetwork);
+            }
+        };
 
         mProvider = new BlockedNumberProviderTestable(mBackupManager);
 
@@ -144,6 +175,10 @@ public class MyMockContext extends MockContext {
                 CarrierConfigManager.class, Context.CARRIER_CONFIG_SERVICE);
     }
 
+    BlockedNumberProviderTestable getProvider() {
+        return mProvider;
+    }
+
     public void shutdown() {
         mProvider.shutdown();
     }
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+@SmallTest
+public class NumberKeySetTest extends TestCase {
+    public void testEncode() {
+        assertEquals(NumberKeySet.NO_KEY, NumberKeySet.encode(""));
+        assertEquals(NumberKeySet.NO_KEY, NumberKeySet.encode("+"));
+        assertEquals(NumberKeySet.NO_KEY, NumberKeySet.encode("12a"));
+        assertEquals(NumberKeySet.NO_KEY, NumberKeySet.encode("1+2"));
+        assertEquals(NumberKeySet.NO_KEY, NumberKeySet.encode("abc.def@gmail.com"));
+        assertEquals(NumberKeySet.NO_KEY, NumberKeySet.encode("1234567890123456"));
+        assertTrue(NumberKeySet.encode("123456789012345") != NumberKeySet.NO_KEY);
+
+        // Leading zeros and '+' are significant.
+        final long[] keys = new long[] {
+                NumberKeySet.encode("123"),
+                NumberKeySet.encode("0123"),
+                NumberKeySet.encode("00123"),
+                NumberKeySet.encode("+123"),
+                NumberKeySet.encode("+0123"),
+                NumberKeySet.encode("0"),
+                NumberKeySet.encode("00"),
+        };
+        for (int i = 0; i < keys.length; i++) {
+            assertTrue(keys[i] != NumberKeySet.NO_KEY);
+            for (int j = i + 1; j < keys.length; j++) {
+                assertTrue(keys[i] != keys[j]);
+            }
+        }
+    }
+
+    public void testReferenceCounts() {
+        final NumberKeySet set = new NumberKeySet();
+        assertTrue(set.add("+16502530000"));
+        assertFalse(set.add("+16502530000"));
+        assertTrue(set.add("abc.def@gmail.com"));
+        assertFalse(set.add("abc.def@gmail.com"));
+        assertEquals(2, set.size());
+        assertEquals(1, set.getOtherNumberCount());
+
+        assertFalse(set.remove("+16502530000"));
+        assertTrue(set.contains("+16502530000"));
+        assertTrue(set.remove("+16502530000"));
+        assertFalse(set.contains("+16502530000"));
+        assertFalse(set.remove("+16502530000"));
+
+        assertFalse(set.remove("abc.def@gmail.com"));
+        assertTrue(set.remove("abc.def@gmail.com"));
+        assertFalse(set.contains("abc.def@gmail.com"));
+        assertEquals(0, set.size());
+    }
+
+    /**
+     * Removes entries in every order from a probe run which wraps around the end of the table,
+     * holding entries of two home slots.
+     */
+    public void testRemove_collisionsAndWraparound() {
+        final int capacity = new NumberKeySet().getCapacity();
+        final int mask = capacity - 1;
+        final List<String> numbers = new ArrayList<>();
+        numbers.addAll(numbersWithHomeSlot(mask, mask, 3));
+        numbers.addAll(numbersWithHomeSlot(0, mask, 2));
+        for (int[] order : permutations(numbers.size())) {
+            final NumberKeySet set = new NumberKeySet();
+            for (String number : numbers) {
+                assertTrue(set.add(number));
+            }
+            assertEquals(capacity, set.getCapacity());
+            final boolean[] removed = new boolean[numbers.size()];
+            for (int index : order) {
+                assertTrue(set.remove(numbers.get(index)));
+                removed[index] = true;
+                for (int i = 0; i < numbers.size(); i++) {
+                    assertEquals(numbers.get(i), !removed[i], set.contains(numbers.get(i)));
+                }
+            }
+            assertEquals(0, set.size());
+
+            // Slots freed by removals can be used again.
+            for (String number : numbers) {
+                assertTrue(set.add(number));
+            }
+            for (String number : numbers) {
+                assertTrue(set.contains(number));
+            }
+        }
+    }
+
+    public void testResize() {
+        final NumberKeySet set = new NumberKeySet();
+        final int initialCapacity = set.getCapacity();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(set.add("+1650" + i));
+        }
+        assertTrue(set.getCapacity() > initialCapacity);
+        assertEquals(10000, set.size());
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(set.contains("+1650" + i));
+            assertFalse(set.contains("1650" + i));
+        }
+
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(set.remove("+1650" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 2 == 1, set.contains("+1650" + i));
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(set.add("+1650" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(set.contains("+1650" + i));
+        }
+    }
+
+    /** Random operations on a few keys crowded in a small table, checked against a map. */
+    public void testRandomOperations() {
+        final Random random = new Random(42);
+        final NumberKeySet set = new NumberKeySet();
+        final Map<String, Integer> expected = new HashMap<>();
+        for (int op = 0; op < 100000; op++) {
+            final String number = random.nextInt(4) == 0
+                    ? "user" + random.nextInt(8) + "@example.com"
+                    : Integer.toString(random.nextInt(64));
+            final Integer count = expected.get(number);
+            if (random.nextBoolean()) {
+                assertEquals(count == null, set.add(number));
+                expected.put(number, count == null ? 1 : count + 1);
+            } else {
+                assertEquals(count != null && count == 1, set.remove(number));
+                if (count != null) {
+                    if (count == 1) {
+                        expected.remove(number);
+                    } else {
+                        expected.put(number, count - 1);
+                    }
+                }
+            }
+            assertEquals(expected.size(), set.size());
+            if (op % 100 == 0) {
+                for (int i = 0; i < 64; i++) {
+                    assertEquals(expected.containsKey(Integer.toString(i)),
+                            set.contains(Integer.toString(i)));
+                }
+            }
+        }
+    }
+
+    public void testCopy() {
+        final NumberKeySet set = new NumberKeySet();
+        set.add("123");
+        set.add("abc.def@gmail.com");
+        final NumberKeySet copy = set.copy();
+        set.remove("123");
+        set.add("456");
+        assertTrue(copy.contains("123"));
+        assertFalse(copy.contains("456"));
+        assertTrue(copy.contains("abc.def@gmail.com"));
+        assertEquals(2, copy.size());
+    }
+
+    public void testPutAll() {
+        final NumberKeySet set = new NumberKeySet();
+        for (int i = 0; i < 100; i++) {
+            set.add("+1650" + i);
+        }
+        set.add("abc.def@gmail.com");
+        final BloomFilter filter = new BloomFilter(200, 0.01);
+        set.putAll(filter);
+        assertEquals(101, filter.size());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.mightContain(NumberKeySet.encode("+1650" + i)));
+        }
+        assertTrue(filter.mightContain("abc.def@gmail.com"));
+    }
+
+    /** @return the first {@code count} numbers whose key hashes to {@code slot}. */
+    private static List<String> numbersWithHomeSlot(int slot, int mask, int count) {
+        final List<String> numbers = new ArrayList<>();
+        for (int i = 1; numbers.size() < count; i++) {
+            final String number = Integer.toString(i);
+            if ((NumberKeySet.hash(NumberKeySet.encode(number)) & mask) == slot) {
+                numbers.add(number);
+            }
+        }
+        return numbers;
+    }
+
+    private static List<int[]> permutations(int n) {
+        final List<int[]> permutations = new ArrayList<>();
+        permute(new int[n], new boolean[n], 0, permutations);
+        return permutations;
+    }
+
+    private static void permute(int[] current, boolean[] used, int length, List<int[]> out) {
+        if (length == current.length) {
+            out.add(current.clone());
+            return;
+        }
+        for (int i = 0; i < current.length; i++) {
+            if (!used[i]) {
+                used[i] = true;
+                current[length] = i;
+                permute(current, used, length + 1, out);
+                used[i] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@SmallTest
+public class PatternAutomatonTest extends TestCase {
+    public void testIsValidPattern() {
+        assertTrue(PatternAutomaton.isValidPattern("1650253????"));
+        assertTrue(PatternAutomaton.isValidPattern("1?00*"));
+        assertTrue(PatternAutomaton.isValidPattern("*"));
+        assertFalse(PatternAutomaton.isValidPattern("1*00"));
+        assertFalse(PatternAutomaton.isValidPattern("1**"));
+        assertFalse(PatternAutomaton.isValidPattern("+1650"));
+        assertFalse(PatternAutomaton.isValidPattern("1 650"));
+    }
+
+    public void testMatches() {
+        final PatternAutomaton automaton = new PatternAutomaton();
+        assertTrue(automaton.add("1650253????"));
+        assertTrue(automaton.add("1500???0000"));
+        assertTrue(automaton.add("18?0*"));
+        assertFalse(automaton.add("18?0*"));
+        assertEquals(3, automaton.size());
+
+        assertTrue(automaton.matches("+16502530000", 1));
+        assertTrue(automaton.matches("16502539876", 0));
+        assertFalse(automaton.matches("+16502540000", 1));
+        assertFalse(automaton.matches("+1650253000", 1));
+        assertFalse(automaton.matches("+165025300000", 1));
+        assertTrue(automaton.matches("+15002230000", 1));
+        assertFalse(automaton.matches("+15002230001", 1));
+        // '*' matches any suffix, including an empty one.
+        assertTrue(automaton.matches("+1800", 1));
+        assertTrue(automaton.matches("+18902551234", 1));
+        assertFalse(automaton.matches("+1801", 1));
+        assertFalse(automaton.matches("+180", 1));
+        assertFalse(automaton.matches("+", 1));
+    }
+
+    public void testRemove_overlappingPatterns() {
+        final PatternAutomaton automaton = new PatternAutomaton();
+        automaton.add("1650*");
+        automaton.add("1650253????");
+        automaton.add("1??0253????");
+        assertTrue(automaton.matches("16502530000", 0));
+
+        assertTrue(automaton.remove("1650*"));
+        assertFalse(automaton.remove("1650*"));
+        assertFalse(automaton.remove("1651*"));
+        assertFalse(automaton.remove("1650"));
+        assertTrue(automaton.matches("16502530000", 0));
+        assertTrue(automaton.matches("17702530000", 0));
+        assertFalse(automaton.matches("1650", 0));
+
+        assertTrue(automaton.remove("1??0253????"));
+        assertTrue(automaton.matches("16502530000", 0));
+        assertFalse(automaton.matches("17702530000", 0));
+
+        assertTrue(automaton.remove("1650253????"));
+        assertFalse(automaton.matches("16502530000", 0));
+        assertEquals(0, automaton.size());
+
+        // Removed patterns can be added again.
+        assertTrue(automaton.add("1650*"));
+        assertTrue(automaton.matches("1650", 0));
+        assertTrue(automaton.matches("16502530000", 0));
+
+        automaton.clear();
+        assertEquals(0, automaton.size());
+        assertFalse(automaton.matches("1650", 0));
+    }
+
+    /** Checks the automaton against a direct match of each pattern. */
+    public void testRandomPatterns() {
+        final Random random = new Random(42);
+        final PatternAutomaton automaton = new PatternAutomaton();
+        final List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final String pattern = randomPattern(random);
+            if (automaton.add(pattern)) {
+                patterns.add(pattern);
+            }
+        }
+        for (int i = 0; i < 20000; i++) {
+            final String number = randomNumber(random);
+            assertEquals(number, matchesAny(patterns, number), automaton.matches(number, 0));
+            if (i % 5000 == 4999) {
+                // Remove a pattern, which drops the states as well.
+                assertTrue(automaton.remove(patterns.remove(random.nextInt(patterns.size()))));
+            }
+        }
+    }
+
+    /**
+     * Uses patterns for which every distinct prefix of the input is a distinct state, so the
+     * remembered states exceed their bound and are dropped and recomputed.
+     */
+    public void testStateReset() {
+        final PatternAutomaton automaton = new PatternAutomaton();
+        final List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            for (int digit = 0; digit < 10; digit++) {
+                final char[] pattern = "??????????".toCharArray();
+                pattern[i] = (char) ('0' + digit);
+                patterns.add(new String(pattern));
+                automaton.add(patterns.get(patterns.size() - 1));
+            }
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            final String number = i % 2 == 0
+                    ? String.format("%010d", random.nextInt(Integer.MAX_VALUE))
+                    : String.format("%09d", random.nextInt(1000000000));
+            assertEquals(number, matchesAny(patterns, number), automaton.matches(number, 0));
+        }
+        assertTrue(automaton.getStateResetCount() > 0);
+        assertTrue(automaton.getStateCount() <= 4096);
+    }
+
+    private static String randomPattern(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        final int length = 1 + random.nextInt(10);
+        for (int i = 0; i < length; i++) {
+            sb.append(random.nextInt(3) == 0 ? '?' : (char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextBoolean()) {
+            sb.append('*');
+        }
+        return sb.toString();
+    }
+
+    private static String randomNumber(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        final int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('0' + random.nextInt(10)));
+        }
+        return sb.toString();
+    }
+
+    private static boolean matchesAny(List<String> patterns, String number) {
+        for (String pattern : patterns) {
+            final boolean anySuffix = pattern.endsWith("*");
+            final int length = anySuffix ? pattern.length() - 1 : pattern.length();
+            if (anySuffix ? number.length() < length : number.length() != length) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < length && matches; i++) {
+                matches = pattern.charAt(i) == '?' || pattern.charAt(i) == number.charAt(i);
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
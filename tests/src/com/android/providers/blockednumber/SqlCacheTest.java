@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.blockednumber;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+@SmallTest
+public class SqlCacheTest extends TestCase {
+    private static final String COUNT_SQL = "SELECT COUNT(*) FROM t WHERE value=?";
+    private static final Map<String, String> PROJECTION_MAP = new ArrayMap<>();
+    static {
+        PROJECTION_MAP.put("_id", "_id");
+        PROJECTION_MAP.put("value", "value");
+    }
+
+    private SQLiteDatabase mDb;
+    private SqlCache mSqlCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = createDatabase();
+        mSqlCache = new SqlCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testStatements() {
+        assertEquals(1, count(mDb, "a"));
+        assertEquals(0, mSqlCache.getStatementHits());
+        assertEquals(1, mSqlCache.getStatementMisses());
+
+        assertEquals(2, count(mDb, "b"));
+        assertEquals(1, mSqlCache.getStatementHits());
+        assertEquals(1, mSqlCache.getStatementMisses());
+
+        // A statement in use isn't handed out twice.
+        final SQLiteStatement statement = mSqlCache.acquireStatement(mDb, COUNT_SQL);
+        assertEquals(0, count(mDb, "c"));
+        mSqlCache.releaseStatement(mDb, COUNT_SQL, statement);
+        assertEquals(2, mSqlCache.getStatementHits());
+        assertEquals(2, mSqlCache.getStatementMisses());
+    }
+
+    public void testQueries() {
+        assertEquals(2, queryCount(mDb, "value=?", "b"));
+        assertEquals(1, queryCount(mDb, "value=?", "a"));
+        assertEquals(1, mSqlCache.getQueryHits());
+        assertEquals(1, mSqlCache.getQueryMisses());
+
+        assertEquals(3, queryCount(mDb, "value!=?", "c"));
+        assertEquals(1, mSqlCache.getQueryHits());
+        assertEquals(2, mSqlCache.getQueryMisses());
+    }
+
+    /** Nothing cached for one database is used for another. */
+    public void testDatabaseChange() {
+        assertEquals(1, count(mDb, "a"));
+        assertEquals(1, queryCount(mDb, "value=?", "a"));
+
+        final SQLiteDatabase db = createDatabase();
+        try {
+            assertEquals(1, count(db, "a"));
+            assertEquals(1, queryCount(db, "value=?", "a"));
+        } finally {
+            db.close();
+        }
+        assertEquals(0, mSqlCache.getStatementHits());
+        assertEquals(2, mSqlCache.getStatementMisses());
+        assertEquals(0, mSqlCache.getQueryHits());
+        assertEquals(2, mSqlCache.getQueryMisses());
+    }
+
+    private static SQLiteDatabase createDatabase() {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE t (_id INTEGER PRIMARY KEY AUTOINCREMENT, value TEXT)");
+        db.execSQL("INSERT INTO t (value) VALUES ('a'), ('b'), ('b')");
+        return db;
+    }
+
+    private long count(SQLiteDatabase db, String value) {
+        final SQLiteStatement statement = mSqlCache.acquireStatement(db, COUNT_SQL);
+        try {
+            statement.bindString(1, value);
+            return statement.simpleQueryForLong();
+        } finally {
+            mSqlCache.releaseStatement(db, COUNT_SQL, statement);
+        }
+    }
+
+    private int queryCount(SQLiteDatabase db, String selection, String value) {
+        try (Cursor c = mSqlCache.query(db, "t", PROJECTION_MAP, new String[] {"_id"},
+                selection, new String[] {value}, "_id", null, null)) {
+            return c.getCount();
+        }
+    }
+}